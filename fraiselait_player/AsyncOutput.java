@@ -0,0 +1,398 @@
+import dev.wycey.mido.fraiselait.builtins.WaveformType;
+
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 別のスレッドで出力するための、出力先のラッパー。
+ * コマンドは時刻とともにロックを使わない固定長のリングバッファに積まれ、出力先ごとの書き込みスレッドが順に取り出して出力する。
+ * 再生スレッドは出力先の I/O を待たないため、シリアル通信が詰まっても以降のイベントの時刻に影響しない。
+ * リングバッファが一杯の場合、コマンドは破棄され {@link #getDroppedCommandCount()} に数えられる。
+ * ただし noTone と波形の切り替えは破棄せず、その時点で積まれていたコマンドの後に出力するため、
+ * 音が鳴り続けたり、誤った波形のまま再生されたりすることはない。破棄されずに保留された波形の切り替えは、最後のものだけが出力される。
+ * 使い終わったら {@link #close()} で書き込みスレッドを終了する。
+ */
+public class AsyncOutput implements PlaybackOutput, AutoCloseable {
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  private static final byte CHANGE_WAVEFORM = 0;
+  private static final byte TONE = 1;
+  private static final byte TIMED_TONE = 2;
+  private static final byte NO_TONE = 3;
+  private static final byte SET_POSITION = 4;
+
+  // Tail once the writer has finished, so that no more positions can be claimed
+  private static final long CLOSED_POSITION = Long.MAX_VALUE;
+  private static final long NO_PENDING = -1;
+  // A pending waveform change holds its position above these bits and the waveform ordinal in them
+  private static final int WAVEFORM_BITS = 8;
+  private static final long WAVEFORM_MASK = (1 << WAVEFORM_BITS) - 1;
+  private static final WaveformType[] WAVEFORMS = WaveformType.values();
+
+  private static final AtomicInteger threadId = new AtomicInteger(0);
+
+  private final PlaybackOutput output;
+  private final PlaybackClock clock;
+  private final int mask;
+
+  // Slot i is free for the producer claiming position p when its sequence is p, and readable at position p when it is p + 1
+  private final AtomicLongArray sequences;
+  private final byte[] kinds;
+  private final double[] frequencies;
+  private final double[] volumes;
+  // Duration of timed tones or the position, in nanoseconds
+  private final long[] durations;
+  private final WaveformType[] waveforms;
+  private final long[] enqueuedAt;
+
+  // Next position to claim; producers normally are a single playback thread, but stop() also sends noTone from its caller
+  private final AtomicLong tail = new AtomicLong();
+  // Next position to read, written only by the writer thread
+  private volatile long head = 0;
+  // Position before which a noTone that did not fit in the ring has to be written, or NO_PENDING
+  private final AtomicLong pendingNoTone = new AtomicLong(NO_PENDING);
+  // Waveform change that did not fit in the ring, packed with the position before which it has to be written, or NO_PENDING
+  private final AtomicLong pendingWaveform = new AtomicLong(NO_PENDING);
+
+  private final Thread writer;
+  private volatile boolean waiting = false;
+  private volatile boolean closed = false;
+
+  private final AtomicLong maxQueueDepth = new AtomicLong();
+  private final AtomicLong droppedCommands = new AtomicLong();
+
+  // Written only by the writer thread
+  private volatile long writtenCommands = 0;
+  private volatile long failedCommands = 0;
+  private volatile long lastLatency = 0;
+  private volatile long maxLatency = 0;
+  private volatile long totalLatency = 0;
+
+  /**
+   * @param output   実際の出力先
+   * @param capacity リングバッファに積めるコマンドの数 (2の累乗に切り上げられる)
+   * @param clock    遅延の測定に使う時計
+   */
+  public AsyncOutput(PlaybackOutput output, int capacity, PlaybackClock clock) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+    }
+
+    final var size = capacity > 1 ? Integer.highestOneBit(capacity - 1) << 1 : 1;
+
+    this.output = output;
+    this.clock = clock;
+    this.mask = size - 1;
+
+    sequences = new AtomicLongArray(size);
+    kinds = new byte[size];
+    frequencies = new double[size];
+    volumes = new double[size];
+    durations = new long[size];
+    waveforms = new WaveformType[size];
+    enqueuedAt = new long[size];
+
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, i);
+    }
+
+    writer = new Thread(this::drain, "AsyncOutput Writer " + threadId.getAndIncrement());
+    writer.setDaemon(true);
+    writer.setPriority(Thread.MAX_PRIORITY);
+    writer.start();
+  }
+
+  public AsyncOutput(PlaybackOutput output) {
+    this(output, DEFAULT_CAPACITY, PlaybackClock.SYSTEM);
+  }
+
+  public PlaybackOutput getOutput() {
+    return output;
+  }
+
+  @Override
+  public void changeWaveform(WaveformType type) {
+    offer(CHANGE_WAVEFORM, 0, 0, 0, type);
+  }
+
+  @Override
+  public void tone(double frequency, double volume) {
+    offer(TONE, frequency, volume, 0, null);
+  }
+
+  @Override
+  public void tone(double frequency, double volume, Duration duration) {
+    offer(TIMED_TONE, frequency, volume, duration.toNanos(), null);
+  }
+
+  @Override
+  public void noTone() {
+    offer(NO_TONE, 0, 0, 0, null);
+  }
+
+  @Override
+  public void setPosition(Duration position) {
+    offer(SET_POSITION, 0, 0, position.toNanos(), null);
+  }
+
+  /**
+   * 出力を待っているコマンドの数を取得する。
+   */
+  public long getQueueDepth() {
+    final var tail = this.tail.get();
+
+    return tail != CLOSED_POSITION ? Math.max(0, tail - head) : 0;
+  }
+
+  /**
+   * これまでに出力を待っていたコマンドの数の最大値を取得する。
+   */
+  public long getMaxQueueDepth() {
+    return maxQueueDepth.get();
+  }
+
+  /**
+   * リングバッファが一杯だった、または終了後だったために破棄されたコマンドの数を取得する。
+   */
+  public long getDroppedCommandCount() {
+    return droppedCommands.get();
+  }
+
+  /**
+   * 出力したコマンドの数を取得する。出力先で例外が発生したコマンドも含む。
+   */
+  public long getWrittenCommandCount() {
+    return writtenCommands;
+  }
+
+  /**
+   * 出力先で例外が発生したコマンドの数を取得する。
+   */
+  public long getFailedCommandCount() {
+    return failedCommands;
+  }
+
+  /**
+   * 最後に出力したコマンドの、積まれてから出力が完了するまでの時間を取得する。
+   */
+  public Duration getLastLatency() {
+    return Duration.ofNanos(lastLatency);
+  }
+
+  /**
+   * コマンドが積まれてから出力が完了するまでの時間の最大値を取得する。
+   */
+  public Duration getMaxLatency() {
+    return Duration.ofNanos(maxLatency);
+  }
+
+  /**
+   * コマンドが積まれてから出力が完了するまでの時間の平均を取得する。
+   */
+  public Duration getAverageLatency() {
+    final var count = writtenCommands;
+
+    return count > 0 ? Duration.ofNanos(totalLatency / count) : Duration.ZERO;
+  }
+
+  /**
+   * 積まれているコマンドをすべて出力してから、書き込みスレッドを終了する。
+   *
+   * @throws TimeoutException 書き込みスレッドが1秒以上終了しなかった場合
+   */
+  @Override
+  public void close() throws TimeoutException {
+    closed = true;
+
+    LockSupport.unpark(writer);
+
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CompletionException(e);
+    }
+
+    if (writer.isAlive()) {
+      throw new TimeoutException("Failed to flush the output within 1 second");
+    }
+  }
+
+  // Claims a slot and publishes the command, or drops it if the ring is full or the writer has finished
+  private void offer(byte kind, double frequency, double volume, long duration, WaveformType waveform) {
+    var position = tail.get();
+
+    while (true) {
+      if (position == CLOSED_POSITION) {
+        droppedCommands.incrementAndGet();
+
+        return;
+      }
+
+      final var difference = sequences.get((int) position & mask) - position;
+
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) break;
+
+        position = tail.get();
+      } else if (difference < 0) {
+        if (kind == NO_TONE) deferNoTone(position);
+        else if (kind == CHANGE_WAVEFORM) deferWaveform(position, waveform);
+        else droppedCommands.incrementAndGet();
+
+        return;
+      } else {
+        position = tail.get();
+      }
+    }
+
+    final var index = (int) position & mask;
+
+    kinds[index] = kind;
+    frequencies[index] = frequency;
+    volumes[index] = volume;
+    durations[index] = duration;
+    waveforms[index] = waveform;
+    enqueuedAt[index] = clock.nanoTime();
+
+    sequences.set(index, position + 1);
+
+    final var depth = position + 1 - head;
+
+    if (depth > maxQueueDepth.get()) maxQueueDepth.accumulateAndGet(depth, Math::max);
+
+    if (waiting) LockSupport.unpark(writer);
+  }
+
+  // Has the writer send noTone once every command before the position is written, replacing an earlier pending one
+  private void deferNoTone(long position) {
+    pendingNoTone.accumulateAndGet(position, Math::max);
+
+    notifyPending(pendingNoTone);
+  }
+
+  // Has the writer change to the waveform once every command before the position is written,
+  // replacing the waveform of an earlier pending change but keeping its position, so that the device is corrected as soon as possible
+  private void deferWaveform(long position, WaveformType waveform) {
+    pendingWaveform.getAndUpdate(
+        pending -> (pending != NO_PENDING ? pending >>> WAVEFORM_BITS : position) << WAVEFORM_BITS | waveform.ordinal()
+    );
+
+    notifyPending(pendingWaveform);
+  }
+
+  private void notifyPending(AtomicLong pending) {
+    // The writer may have finished before seeing it
+    if (tail.get() == CLOSED_POSITION && pending.getAndSet(NO_PENDING) != NO_PENDING) {
+      droppedCommands.incrementAndGet();
+    }
+
+    if (waiting) LockSupport.unpark(writer);
+  }
+
+  // Writes the pending commands due before the position, the waveform first so that it applies to the following tones
+  private void writePending(long position) {
+    final var waveform = takeDue(pendingWaveform, position, WAVEFORM_BITS);
+
+    if (waveform != NO_PENDING) write(CHANGE_WAVEFORM, 0, 0, 0, WAVEFORMS[(int) (waveform & WAVEFORM_MASK)], clock.nanoTime());
+
+    if (takeDue(pendingNoTone, position, 0) != NO_PENDING) write(NO_TONE, 0, 0, 0, null, clock.nanoTime());
+  }
+
+  // Clears and returns the pending value if its position, above the shift, is due before the position
+  private static long takeDue(AtomicLong pending, long position, int shift) {
+    while (true) {
+      final var value = pending.get();
+
+      if (value == NO_PENDING || value >>> shift > position) return NO_PENDING;
+
+      // Retry if a producer has just replaced it, so that the replacement is not counted as dropped while closing
+      if (pending.compareAndSet(value, NO_PENDING)) return value;
+    }
+  }
+
+  // Runs on the writer thread until closed and empty
+  private void drain() {
+    var position = head;
+
+    while (true) {
+      writePending(position);
+
+      final var index = (int) position & mask;
+
+      if (sequences.get(index) != position + 1) {
+        // Fails if a producer has claimed the position but not published it yet
+        if (closed && tail.compareAndSet(position, CLOSED_POSITION)) {
+          // Every pending command was deferred at a position up to here; one deferred from now on is counted as dropped
+          writePending(position);
+
+          return;
+        }
+
+        waiting = true;
+
+        // Check again, as the command may have been published before the flag was seen
+        if (sequences.get(index) != position + 1 && pendingNoTone.get() == NO_PENDING && pendingWaveform.get() == NO_PENDING && !closed) {
+          LockSupport.park(this);
+        }
+
+        waiting = false;
+
+        continue;
+      }
+
+      final var kind = kinds[index];
+      final var frequency = frequencies[index];
+      final var volume = volumes[index];
+      final var duration = durations[index];
+      final var waveform = waveforms[index];
+      final var enqueued = enqueuedAt[index];
+
+      waveforms[index] = null;
+
+      // Release the slot to the producers before writing, which may take long
+      sequences.set(index, position + mask + 1);
+      head = ++position;
+
+      write(kind, frequency, volume, duration, waveform, enqueued);
+    }
+  }
+
+  private void write(byte kind, double frequency, double volume, long duration, WaveformType waveform, long enqueued) {
+    try {
+      switch (kind) {
+        case CHANGE_WAVEFORM:
+          output.changeWaveform(waveform);
+          break;
+        case TONE:
+          output.tone(frequency, volume);
+          break;
+        case TIMED_TONE:
+          output.tone(frequency, volume, Duration.ofNanos(duration));
+          break;
+        case NO_TONE:
+          output.noTone();
+          break;
+        case SET_POSITION:
+          output.setPosition(Duration.ofNanos(duration));
+          break;
+      }
+    } catch (RuntimeException e) {
+      // Keep writing the later commands, as the device may recover
+      failedCommands++;
+    }
+
+    final var latency = clock.nanoTime() - enqueued;
+
+    lastLatency = latency;
+    maxLatency = Math.max(maxLatency, latency);
+    totalLatency += latency;
+    writtenCommands++;
+  }
+}
@@ -1,21 +1,26 @@
 import processing.core.PApplet;
 
 import java.time.Duration;
-import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
 
 public class CurrentFrame {
   private final PApplet parent;
-  private final LocalDateTime startTime;
+  // Start time of the sketch in nanoseconds of the playback clock
+  private final long startTime;
   private Integer lastFrame = null;
   private Duration lastFrameTime = Duration.ZERO;
 
-  public CurrentFrame(PApplet parent) {
+  public CurrentFrame(PApplet parent, PlaybackClock clock) {
     this.parent = parent;
 
-    startTime = LocalDateTime.now().minus(Duration.ofMillis(parent.millis()));
+    startTime = clock.nanoTime() - TimeUnit.MILLISECONDS.toNanos(parent.millis());
+  }
+
+  public CurrentFrame(PApplet parent) {
+    this(parent, PlaybackClock.SYSTEM);
   }
 
-  public LocalDateTime getStartTime() {
+  public long getStartTime() {
     return startTime;
   }
 
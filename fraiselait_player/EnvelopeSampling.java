@@ -0,0 +1,86 @@
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * エンベロープを持つ音符を、どの間隔で音量の変化として出力するか。
+ * 既定ではオシレーターのサンプル点 (duration / quality) ごとに出力する。
+ * 適応的なサンプリングでは、前回出力した音量からの変化が閾値に達したとき、または最大間隔が経過したときのみ出力する。
+ * 閾値を出力先の音量の分解能に合わせると、聞こえ方を変えずにイベントの数を減らせる。
+ */
+public final class EnvelopeSampling {
+  /**
+   * サンプル点ごとに出力する
+   */
+  public static final EnvelopeSampling FIXED = new EnvelopeSampling(0, 0);
+
+  private final double volumeThreshold;
+  private final long maxIntervalNanos;
+
+  private EnvelopeSampling(double volumeThreshold, long maxIntervalNanos) {
+    this.volumeThreshold = volumeThreshold;
+    this.maxIntervalNanos = maxIntervalNanos;
+  }
+
+  /**
+   * 適応的なサンプリングを作成する。
+   *
+   * @param volumeThreshold 出力する音量の変化の閾値 (出力先の音量の分解能)
+   * @param maxInterval     音量の変化が小さい場合でも出力する間隔
+   */
+  public static EnvelopeSampling adaptive(double volumeThreshold, Duration maxInterval) {
+    if (!(volumeThreshold > 0)) {
+      throw new IllegalArgumentException("Volume threshold must be positive");
+    }
+
+    if (maxInterval.isNegative() || maxInterval.isZero()) {
+      throw new IllegalArgumentException("Max interval must be positive");
+    }
+
+    return new EnvelopeSampling(volumeThreshold, maxInterval.toNanos());
+  }
+
+  public boolean isFixed() {
+    return volumeThreshold == 0;
+  }
+
+  public double getVolumeThreshold() {
+    return volumeThreshold;
+  }
+
+  public Duration getMaxInterval() {
+    return Duration.ofNanos(maxIntervalNanos);
+  }
+
+  /**
+   * 前回出力したサンプルから、指定したサンプルまでの変化を出力すべきかどうか。
+   *
+   * @param lastVolume 前回出力した音量
+   * @param volume     サンプルの音量
+   * @param elapsed    前回出力してからの経過時間 (ナノ秒)
+   */
+  boolean shouldEmit(double lastVolume, double volume, long elapsed) {
+    return isFixed() || Math.abs(volume - lastVolume) >= volumeThreshold || elapsed >= maxIntervalNanos;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof EnvelopeSampling)) return false;
+
+    EnvelopeSampling that = (EnvelopeSampling) o;
+    return Double.compare(volumeThreshold, that.volumeThreshold) == 0 && maxIntervalNanos == that.maxIntervalNanos;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = Double.hashCode(volumeThreshold);
+    result = 31 * result + Long.hashCode(maxIntervalNanos);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return isFixed()
+        ? "EnvelopeSampling(fixed)"
+        : "EnvelopeSampling(volumeThreshold=" + volumeThreshold + ", maxInterval=" + getMaxInterval() + ')';
+  }
+}
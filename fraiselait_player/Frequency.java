@@ -1,3 +1,5 @@
+import java.util.Objects;
+
 public interface Frequency {
   double get(double a4Freq);
 
@@ -21,7 +23,20 @@ public interface Frequency {
 
     @Override
     public double get(double a4Freq) {
-      return Notes.hertz(note.index, note.octave, a4Freq);
+      return FrequencyTable.of(a4Freq).get(note.index, note.octave);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof NoteFrequency)) return false;
+
+      NoteFrequency that = (NoteFrequency) o;
+      return Objects.equals(note, that.note);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(note);
     }
 
     @Override
@@ -42,6 +57,19 @@ public interface Frequency {
       return frequency;
     }
 
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof RawFrequency)) return false;
+
+      RawFrequency that = (RawFrequency) o;
+      return Double.compare(frequency, that.frequency) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return Double.hashCode(frequency);
+    }
+
     @Override
     public String toString() {
       return frequency + "Hz";
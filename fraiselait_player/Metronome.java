@@ -1,14 +1,22 @@
 import java.time.Duration;
-import java.time.LocalDateTime;
 
 public class Metronome {
-  private LocalDateTime startTime;
+  private static final long NOT_STARTED = Long.MIN_VALUE;
+
+  private final PlaybackClock clock;
+  // Start time in nanoseconds of the clock
+  private long startTime = NOT_STARTED;
   private double bpm;
   private int beats;
 
-  public Metronome(double bpm, int beats) {
+  public Metronome(double bpm, int beats, PlaybackClock clock) {
     this.bpm = bpm;
     this.beats = beats;
+    this.clock = clock;
+  }
+
+  public Metronome(double bpm, int beats) {
+    this(bpm, beats, PlaybackClock.SYSTEM);
   }
 
   public Metronome() {
@@ -32,23 +40,23 @@ public class Metronome {
   }
 
   public int getBars() {
-    return (int) Math.ceil((double) getElapsedDuration().toNanos() / getBarDuration().toNanos());
+    return (int) Math.ceil((double) getElapsedNanos() / getBarNanos());
   }
 
   public Duration getBeatDuration() {
-    return Duration.ofNanos((long) (60_000_000_000.0 / bpm));
+    return Duration.ofNanos(getBeatNanos());
   }
 
   public Duration getBarDuration() {
-    return getBeatDuration().multipliedBy(beats);
+    return Duration.ofNanos(getBarNanos());
   }
 
   public Duration getElapsedDuration() {
-    return startTime != null ? Duration.between(startTime, LocalDateTime.now()) : Duration.ZERO;
+    return Duration.ofNanos(getElapsedNanos());
   }
 
   public int getBeat() {
-    return (int) Math.floor((double) getElapsedDuration().toNanos() / getBeatDuration().toNanos()) % beats;
+    return (int) Math.floor((double) getElapsedNanos() / getBeatNanos()) % beats;
   }
 
   public Duration getLastBeatDuration() {
@@ -56,26 +64,41 @@ public class Metronome {
   }
 
   public double getBeatProgress() {
-    return (double) getElapsedDuration().toNanos() / getBeatDuration().toNanos() % 1;
+    return (double) getElapsedNanos() / getBeatNanos() % 1;
   }
 
   public double getBarProgress() {
-    return (double) getElapsedDuration().toNanos() / getBarDuration().toNanos() % 1;
+    return (double) getElapsedNanos() / getBarNanos() % 1;
   }
 
-  public void start(LocalDateTime value) {
+  /**
+   * @param value 開始時刻 (時計のナノ秒)
+   */
+  public void start(long value) {
     startTime = value;
   }
 
   public void start() {
-    start(LocalDateTime.now());
+    start(clock.nanoTime());
   }
 
   public void stop() {
-    startTime = null;
+    startTime = NOT_STARTED;
   }
 
   public boolean isPlaying() {
-    return startTime != null && startTime.isBefore(LocalDateTime.now());
+    return startTime != NOT_STARTED && clock.nanoTime() - startTime > 0;
+  }
+
+  private long getBeatNanos() {
+    return (long) (60_000_000_000.0 / bpm);
+  }
+
+  private long getBarNanos() {
+    return getBeatNanos() * beats;
+  }
+
+  private long getElapsedNanos() {
+    return startTime != NOT_STARTED ? clock.nanoTime() - startTime : 0;
   }
 }
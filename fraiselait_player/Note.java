@@ -1,12 +1,14 @@
-import java.util.Arrays;
 import java.util.Map;
 import java.util.Optional;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 class Notes {
   static final double A0_FREQ = 27.5;
   static final int NOTES_IN_OCTAVE = 12;
 
+  // Notes and frequencies up to this octave are served from precomputed tables
+  static final int MAX_TABLE_OCTAVE = 10;
+
   static final double[] scalesRatio = {
       Math.pow(2, (-9 / 12.0)), // C
       Math.pow(2, (-8 / 12.0)), // C#
@@ -71,6 +73,10 @@ class Notes {
   static double hertz(int pos, int octave, double a4freq) {
     if (pos >= scalesRatio.length || pos < 0) throw new IllegalArgumentException();
 
+    return FrequencyTable.of(a4freq).get(pos, octave);
+  }
+
+  static double computeHertz(int pos, int octave, double a4freq) {
     final var baseFreq = a4freq * scalesRatio[pos];
 
     return baseFreq * Math.pow(2, octave - 4);
@@ -130,38 +136,151 @@ class Notes {
   }
 }
 
-public class Note {
-  public static final Pattern NOTE_PATTERN = Pattern.compile("^([A-G][#\\-]?)([0-9]+)$");
+/**
+ * 基準周波数 (A4) 毎に事前計算された、音符の周波数表。
+ */
+final class FrequencyTable {
+  private static final Map<Double, FrequencyTable> tables = new ConcurrentHashMap<>();
+
+  // Most scores use a single base frequency, so the last table is checked before the map
+  private static volatile FrequencyTable last;
+
+  private final double a4Freq;
+  private final double[] frequencies = new double[(Notes.MAX_TABLE_OCTAVE + 1) * Notes.NOTES_IN_OCTAVE];
+
+  private FrequencyTable(double a4Freq) {
+    this.a4Freq = a4Freq;
+
+    for (int octave = 0; octave <= Notes.MAX_TABLE_OCTAVE; octave++) {
+      for (int pos = 0; pos < Notes.NOTES_IN_OCTAVE; pos++) {
+        frequencies[octave * Notes.NOTES_IN_OCTAVE + pos] = Notes.computeHertz(pos, octave, a4Freq);
+      }
+    }
+  }
+
+  static FrequencyTable of(double a4Freq) {
+    final var cached = last;
+
+    if (cached != null && Double.compare(cached.a4Freq, a4Freq) == 0) return cached;
+
+    final var table = tables.computeIfAbsent(a4Freq, FrequencyTable::new);
 
+    last = table;
+
+    return table;
+  }
+
+  double get(int pos, int octave) {
+    if (octave > Notes.MAX_TABLE_OCTAVE) return Notes.computeHertz(pos, octave, a4Freq);
+
+    return frequencies[octave * Notes.NOTES_IN_OCTAVE + pos];
+  }
+}
+
+public class Note {
   private static final String[] noteNames = {
       "C", "C#", "D", "D#", "E", "F", "F#", "G", "G#", "A", "A#", "B"
   };
 
+  // Scale position of the natural notes, indexed by 'A'..'G'
+  private static final int[] naturalIndices = {9, 11, 0, 2, 4, 5, 7};
+
+  // Interned notes, indexed by octave * 12 + index
+  private static final Note[] notes = new Note[(Notes.MAX_TABLE_OCTAVE + 1) * Notes.NOTES_IN_OCTAVE];
+
+  static {
+    for (int i = 0; i < notes.length; i++) {
+      notes[i] = new Note(i % Notes.NOTES_IN_OCTAVE, i / Notes.NOTES_IN_OCTAVE);
+    }
+  }
+
   public final int index;
   public final int octave;
 
   public Note(int index, int octave) {
-    if (index >= Notes.scalesRatio.length || index < 0) throw new IllegalArgumentException();
+    if (index >= Notes.NOTES_IN_OCTAVE || index < 0) throw new IllegalArgumentException();
     if (octave < 0) throw new IllegalArgumentException();
 
     this.index = index;
     this.octave = octave;
   }
 
+  /**
+   * 音符を取得する。表の範囲内の音符は同一のインスタンスが返される。
+   */
+  public static Note of(int index, int octave) {
+    if (index >= Notes.NOTES_IN_OCTAVE || index < 0) throw new IllegalArgumentException();
+    if (octave < 0) throw new IllegalArgumentException();
+
+    if (octave > Notes.MAX_TABLE_OCTAVE) return new Note(index, octave);
+
+    return notes[octave * Notes.NOTES_IN_OCTAVE + index];
+  }
+
   public static Note parse(String fullText) {
-    final var matcher = NOTE_PATTERN.matcher(fullText);
+    final var note = decode(fullText, 0, fullText.length());
+
+    if (note == null) throw new IllegalArgumentException();
+
+    return note;
+  }
+
+  /**
+   * 音符の表記 ([A-G][#-]?[0-9]+) かどうかを判定する。
+   */
+  public static boolean isNote(CharSequence text) {
+    return noteNameLength(text, 0, text.length()) > 0;
+  }
+
+  /**
+   * 文字列の範囲を音符として解釈する。
+   *
+   * @return 音符の表記ではない場合は null
+   * @throws IllegalArgumentException 存在しない音名 (E#, B#) の場合
+   */
+  public static Note decode(CharSequence text, int start, int end) {
+    final var nameLength = noteNameLength(text, start, end);
+
+    if (nameLength == 0) return null;
+
+    var index = naturalIndices[text.charAt(start) - 'A'];
+
+    if (nameLength == 2 && text.charAt(start + 1) == '#') {
+      // E# and B# do not exist
+      if (index == 4 || index == 11) throw new IllegalArgumentException();
+
+      index++;
+    }
+
+    var octave = 0;
+
+    for (int i = start + nameLength; i < end; i++) {
+      octave = Math.addExact(Math.multiplyExact(octave, 10), text.charAt(i) - '0');
+    }
+
+    return of(index, octave);
+  }
+
+  // Returns the length of the note name part, or 0 if the text is not a note
+  private static int noteNameLength(CharSequence text, int start, int end) {
+    if (end - start < 2) return 0;
+
+    final var letter = text.charAt(start);
+
+    if (letter < 'A' || letter > 'G') return 0;
 
-    if (!matcher.matches()) throw new IllegalArgumentException();
+    final var accidental = text.charAt(start + 1);
+    final var nameLength = accidental == '#' || accidental == '-' ? 2 : 1;
 
-    var noteName = matcher.group(1);
+    if (start + nameLength >= end) return 0;
 
-    if (noteName.endsWith("-"))
-      noteName = noteName.substring(0, 1);
+    for (int i = start + nameLength; i < end; i++) {
+      final var c = text.charAt(i);
 
-    final var index = Arrays.asList(noteNames).indexOf(noteName);
-    final var octave = Integer.parseInt(matcher.group(2));
+      if (c < '0' || c > '9') return 0;
+    }
 
-    return new Note(index, octave);
+    return nameLength;
   }
 
   public double toFreq(double a4Freq) {
@@ -173,15 +292,15 @@ public class Note {
   }
 
   public static Note fromWhiteNote(int pos, int octave) {
-    return new Note(Notes.whiteNoteToScalesPos(pos), octave);
+    return of(Notes.whiteNoteToScalesPos(pos), octave);
   }
 
   public static Note fromLeftBlackNote(int pos, int octave) {
-    return new Note(Notes.leftBlackNoteToScalesPos(pos), octave);
+    return of(Notes.leftBlackNoteToScalesPos(pos), octave);
   }
 
   public static Note fromRightBlackNote(int pos, int octave) {
-    return new Note(Notes.rightBlackNoteToScalesPos(pos), octave);
+    return of(Notes.rightBlackNoteToScalesPos(pos), octave);
   }
 
   @Override
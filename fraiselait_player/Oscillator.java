@@ -1,8 +1,18 @@
 import dev.wycey.mido.fraiselait.builtins.WaveformType;
 
+import java.util.LinkedHashMap;
 import java.util.Objects;
 
 public class Oscillator {
+  // Upper bound of the samples in the shared envelope tables (8 MiB of doubles)
+  private static final long MAX_SHARED_ENVELOPE_SAMPLES = 1 << 20;
+
+  // Envelope tables shared by every oscillator with the same envelope, across parts and sessions,
+  // kept in access order so that the least recently used table is evicted first
+  private static final LinkedHashMap<EnvelopeKey, double[]> ENVELOPE_TABLES = new LinkedHashMap<>(16, 0.75f, true);
+  // Guarded by ENVELOPE_TABLES
+  private static long sharedEnvelopeSamples = 0;
+
   private final String name;
   private final WaveformType waveform;
   private final double startVolume;
@@ -12,6 +22,9 @@ public class Oscillator {
   private final int quality;
   private final double durationPerSample;
 
+  // Volumes at the sample points, looked up on first use
+  private volatile double[] envelope;
+
   public Oscillator(String name, WaveformType waveform, double startVolume, double endVolume, double gamma, double duration, int quality) {
     this.name = name;
     this.waveform = waveform;
@@ -91,6 +104,64 @@ public class Oscillator {
     }
   }
 
+  /**
+   * サンプル点 (t = sample / quality) における音量を取得する。
+   * 音量は初回の呼び出し時に表として求められ、同じエンベロープを持つオシレーターの間で共有される。
+   * 共有される表の大きさには上限があり、最も長く使われていない表から共有をやめる (使用中のオシレーターは表を保持し続ける)。
+   *
+   * @param sample サンプル点の番号。quality を超える場合は終了時の音量となる
+   */
+  public double getSampleVolume(int sample) {
+    var table = envelope;
+
+    if (table == null) {
+      final var key = new EnvelopeKey(this);
+
+      synchronized (ENVELOPE_TABLES) {
+        table = ENVELOPE_TABLES.get(key);
+      }
+
+      // Computed outside the lock, as a table of a high quality can be large
+      if (table == null) table = shareEnvelopeTable(key, createEnvelopeTable());
+
+      envelope = table;
+    }
+
+    return table[Math.min(sample, quality)];
+  }
+
+  // Returns the table shared under the key, storing the given one if there is none and evicting the least recently used beyond the limit
+  private static double[] shareEnvelopeTable(EnvelopeKey key, double[] table) {
+    synchronized (ENVELOPE_TABLES) {
+      final var shared = ENVELOPE_TABLES.get(key);
+
+      if (shared != null) return shared;
+      if (table.length > MAX_SHARED_ENVELOPE_SAMPLES) return table;
+
+      ENVELOPE_TABLES.put(key, table);
+      sharedEnvelopeSamples += table.length;
+
+      final var iterator = ENVELOPE_TABLES.values().iterator();
+
+      while (sharedEnvelopeSamples > MAX_SHARED_ENVELOPE_SAMPLES && iterator.hasNext()) {
+        sharedEnvelopeSamples -= iterator.next().length;
+        iterator.remove();
+      }
+
+      return table;
+    }
+  }
+
+  private double[] createEnvelopeTable() {
+    final var table = new double[quality + 1];
+
+    for (int i = 0; i <= quality; i++) {
+      table[i] = calculateVolume((double) i / quality);
+    }
+
+    return table;
+  }
+
   @Override
   public final boolean equals(Object o) {
     if (!(o instanceof Oscillator)) return false;
@@ -123,4 +194,38 @@ public class Oscillator {
         ", quality=" + quality +
         ')';
   }
+
+  /**
+   * エンベロープの形を決める値の組
+   */
+  private static final class EnvelopeKey {
+    private final double startVolume;
+    private final double endVolume;
+    private final double gamma;
+    private final int quality;
+
+    private EnvelopeKey(Oscillator oscillator) {
+      this.startVolume = oscillator.startVolume;
+      this.endVolume = oscillator.endVolume;
+      this.gamma = oscillator.gamma;
+      this.quality = oscillator.quality;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof EnvelopeKey)) return false;
+
+      EnvelopeKey that = (EnvelopeKey) o;
+      return Double.compare(startVolume, that.startVolume) == 0 && Double.compare(endVolume, that.endVolume) == 0 && Double.compare(gamma, that.gamma) == 0 && quality == that.quality;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = Double.hashCode(startVolume);
+      result = 31 * result + Double.hashCode(endVolume);
+      result = 31 * result + Double.hashCode(gamma);
+      result = 31 * result + quality;
+      return result;
+    }
+  }
 }
@@ -0,0 +1,62 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
+
+/**
+ * パートごとの読み込みを並列に行うためのクラス。
+ * パート同士は再生を始めるまで互いに依存しないため、字句解析から再生データの作成までを ForkJoinPool 上でパートごとに実行する。
+ */
+final class ParallelLoader {
+  private ParallelLoader() {
+  }
+
+  /**
+   * すべてのパートを並列に読み込み、パート番号の順に結果を返す。
+   * 失敗したパートがある場合は "Error at sound i" を付けた例外を投げる。複数のパートが失敗した場合、二つ目以降は抑制された例外として追加される。
+   *
+   * @param parts  パート数
+   * @param loader パート番号を受け取り、そのパートを読み込む
+   */
+  static <T> List<T> loadAll(int parts, IntFunction<T> loader) {
+    final var pool = ForkJoinPool.commonPool();
+    final var tasks = new ArrayList<ForkJoinTask<T>>(parts);
+
+    for (int i = 0; i < parts; i++) {
+      final var partIndex = i;
+
+      tasks.add(pool.submit(() -> loader.apply(partIndex)));
+    }
+
+    final var results = new ArrayList<T>(parts);
+    RuntimeException error = null;
+
+    for (int i = 0; i < parts; i++) {
+      final var task = tasks.get(i);
+
+      task.quietlyJoin();
+
+      // getException returns the original exception, unlike join which may rethrow a copy
+      final var exception = task.getException();
+
+      if (exception == null) {
+        results.add(task.getRawResult());
+
+        continue;
+      }
+
+      final var wrapped = new RuntimeException("Error at sound " + i, exception);
+
+      if (error == null) {
+        error = wrapped;
+      } else {
+        error.addSuppressed(wrapped);
+      }
+    }
+
+    if (error != null) throw error;
+
+    return results;
+  }
+}
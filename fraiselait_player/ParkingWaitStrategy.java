@@ -0,0 +1,72 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link LockSupport#parkNanos(long)} で待機し、起床の遅れの分だけ CPU を使って待機する方法。
+ * 遅れの見込みは最も大きかった最近の遅れの2倍とし、大きな遅れにはすぐに追従し、小さくなった場合はゆっくりと縮める。
+ */
+final class ParkingWaitStrategy implements WaitStrategy {
+  private static final long MIN_MARGIN = TimeUnit.MICROSECONDS.toNanos(20);
+  private static final long MAX_MARGIN = TimeUnit.MILLISECONDS.toNanos(16);
+
+  private static final int CALIBRATION_PARKS = 10;
+  private static final long CALIBRATION_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+  // Shrinks by 1/DECAY of the difference on each measurement below it
+  private static final int DECAY = 32;
+
+  // Shared by every playback thread, so that concurrent updates may lose a measurement, which only delays adapting
+  private volatile long margin = MIN_MARGIN;
+
+  ParkingWaitStrategy() {
+    // Measure the wake-up overshoot of this machine before the first event
+    for (int i = 0; i < CALIBRATION_PARKS; i++) {
+      final var start = System.nanoTime();
+
+      LockSupport.parkNanos(CALIBRATION_PARK_NANOS);
+
+      record(System.nanoTime() - start - CALIBRATION_PARK_NANOS);
+    }
+  }
+
+  /**
+   * 現在の起床の遅れの見込み (ナノ秒) を取得する。
+   */
+  long getMargin() {
+    return margin;
+  }
+
+  @Override
+  public void awaitUntil(PlaybackClock clock, long deadline) throws InterruptedException {
+    while (true) {
+      final var remaining = deadline - clock.nanoTime();
+
+      if (remaining <= 0) return;
+
+      if (Thread.interrupted()) throw new InterruptedException();
+
+      final var margin = this.margin;
+
+      if (remaining > margin) {
+        final var parkTime = remaining - margin;
+        final var start = clock.nanoTime();
+
+        LockSupport.parkNanos(parkTime);
+
+        // Waking up early (spuriously or by an interrupt) says nothing about the overshoot
+        final var overshoot = clock.nanoTime() - start - parkTime;
+
+        if (overshoot > 0) record(overshoot);
+      } else {
+        Thread.onSpinWait();
+      }
+    }
+  }
+
+  private void record(long overshoot) {
+    final var current = margin;
+    final var target = Math.max(MIN_MARGIN, Math.min(MAX_MARGIN, overshoot * 2));
+
+    margin = target > current ? target : current - (current - target) / DECAY;
+  }
+}
@@ -0,0 +1,111 @@
+import java.util.LinkedHashMap;
+
+/**
+ * 作成済みの再生データをメモリ上に保持するキャッシュ。
+ * 再生データは作成後に変更されないため、同じ譜面からセッションを作り直す場合は作成し直さずに共有する。
+ * 譜面は内容 (ディスクキャッシュのキー) で、キャッシュを通じて読み込まれていない場合はインスタンスで識別する。
+ * 推定メモリ使用量が上限を超えた場合は、最も長く使われていない再生データから破棄する。
+ */
+final class PartCache {
+  private static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+  private static final PartCache DEFAULT = new PartCache(DEFAULT_MAX_SIZE);
+
+  private final long maxSize;
+  // Kept in access order, so that the least recently used entry comes first
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long totalSize = 0;
+
+  /**
+   * @param maxSize 保持する再生データの推定メモリ使用量の上限 (バイト)
+   */
+  PartCache(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  static PartCache getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * 譜面の再生データを共有する新しいパートを取得する。
+   *
+   * @return キャッシュにない場合は null
+   */
+  synchronized PlaybackPart get(Score score, EnvelopeSampling sampling) {
+    final var entry = entries.get(new Key(score, sampling));
+
+    return entry != null ? entry.part.share(score) : null;
+  }
+
+  /**
+   * パートの再生データを保持する。逐次的に変換するパートや、上限より大きい再生データは保持しない。
+   */
+  synchronized void put(PlaybackPart part) {
+    if (part.isStreaming()) return;
+
+    final var size = part.estimateSize();
+
+    if (size > maxSize) return;
+
+    final var previous = entries.put(new Key(part.getScore(), part.getEnvelopeSampling()), new Entry(part, size));
+
+    if (previous != null) totalSize -= previous.size;
+
+    totalSize += size;
+
+    final var iterator = entries.values().iterator();
+
+    while (totalSize > maxSize && iterator.hasNext()) {
+      totalSize -= iterator.next().size;
+      iterator.remove();
+    }
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    totalSize = 0;
+  }
+
+  /**
+   * 保持している再生データの推定メモリ使用量 (バイト) を取得する。
+   */
+  synchronized long getTotalSize() {
+    return totalSize;
+  }
+
+  private static final class Entry {
+    private final PlaybackPart part;
+    private final long size;
+
+    private Entry(PlaybackPart part, long size) {
+      this.part = part;
+      this.size = size;
+    }
+  }
+
+  private static final class Key {
+    // Content hash of the score if available, otherwise the score itself
+    private final Object score;
+    private final EnvelopeSampling sampling;
+
+    private Key(Score score, EnvelopeSampling sampling) {
+      this.score = score.getCacheKey() != null ? score.getCacheKey() : score;
+      this.sampling = sampling;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) return false;
+
+      Key that = (Key) o;
+      return score.equals(that.score) && sampling.equals(that.sampling);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * score.hashCode() + sampling.hashCode();
+    }
+  }
+}
@@ -0,0 +1,16 @@
+/**
+ * 再生に使う時計。
+ * 時刻は任意の基準からのナノ秒で表し、差のみに意味を持つ。戻ることはなく、システム時刻の変更の影響を受けない。
+ */
+@FunctionalInterface
+public interface PlaybackClock {
+  /**
+   * {@link System#nanoTime()} による時計
+   */
+  PlaybackClock SYSTEM = System::nanoTime;
+
+  /**
+   * 現在の時刻をナノ秒で取得する。
+   */
+  long nanoTime();
+}
@@ -0,0 +1,616 @@
+import dev.wycey.mido.fraiselait.builtins.WaveformType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * 譜面のコマンドを再生データに変換する。
+ * BPM・拍子・音量・オシレーターなどの演奏状態を保持しながらコマンドを一つずつ変換し、
+ * 任意のコマンドの直前の状態を {@link State} として保存・復元できる。
+ */
+class PlaybackCompiler {
+  private static final double EPSILON = 1e-6;
+
+  // Parallel compilation splits the commands into at most this many chunks per thread, each at least this long
+  private static final int MIN_CHUNK_COMMANDS = 2048;
+  private static final int CHUNKS_PER_THREAD = 4;
+
+  private final List<ScoreCommand> commands;
+  private final PlaybackTimeline timeline;
+  private final EnvelopeSampling sampling;
+
+  private int index;
+  private float currentBPM;
+  private int currentMeasure;
+  private double currentMeasureMillis;
+  private float currentVolume;
+  private Oscillator currentOscillator;
+  private WaveformType currentWaveform;
+  private long currentOffset;
+  private boolean loop = false;
+  private boolean stopped = false;
+
+  // Frequencies of the fragments of the current pitch or vibrato, reused across notes
+  private double[] fragmentFrequencies = new double[64];
+
+  /**
+   * 譜面の先頭から変換を開始する。
+   *
+   * @param score    変換する譜面
+   * @param commands 譜面のコマンド
+   * @param timeline 変換結果の出力先
+   * @param sampling エンベロープのサンプリング方法
+   */
+  PlaybackCompiler(Score score, List<ScoreCommand> commands, PlaybackTimeline timeline, EnvelopeSampling sampling) {
+    this.commands = commands;
+    this.timeline = timeline;
+    this.sampling = sampling;
+
+    index = 0;
+    currentBPM = score.getStartingBPM();
+    currentMeasure = score.getStartingMeasure();
+    currentMeasureMillis = Notes.toDurationMillis(currentBPM, currentMeasure);
+    currentVolume = 1f;
+    currentOscillator = score.getStartingOscillator();
+    currentWaveform = currentOscillator.getWaveform();
+    currentOffset = Math.round(score.getOffset() * 1_000_000);
+
+    // Set default oscillator waveform at the beginning
+    timeline.addChangeWaveform(getInitialPlaybackData(), currentOffset, currentWaveform);
+  }
+
+  /**
+   * 保存された状態から変換を再開する。
+   * 出力先には、その状態までの変換結果が格納されていること。
+   *
+   * @param state    再開する状態
+   * @param commands 譜面のコマンド
+   * @param timeline 変換結果の出力先
+   * @param sampling エンベロープのサンプリング方法 (状態を保存したときと同じもの)
+   */
+  PlaybackCompiler(State state, List<ScoreCommand> commands, PlaybackTimeline timeline, EnvelopeSampling sampling) {
+    this.commands = commands;
+    this.timeline = timeline;
+    this.sampling = sampling;
+
+    index = state.index;
+    currentBPM = state.bpm;
+    currentMeasure = state.measure;
+    currentMeasureMillis = Notes.toDurationMillis(currentBPM, currentMeasure);
+    currentVolume = state.volume;
+    currentOscillator = state.oscillator;
+    currentWaveform = state.waveform;
+    currentOffset = state.offset;
+    loop = state.loop;
+  }
+
+  private PlaybackData getInitialPlaybackData() {
+    return new PlaybackData(0, currentBPM, currentMeasure, currentVolume, currentOscillator);
+  }
+
+  boolean hasNext() {
+    return !stopped && index < commands.size();
+  }
+
+  /**
+   * 次に変換するコマンドの番号を取得する。
+   */
+  int getIndex() {
+    return index;
+  }
+
+  /**
+   * 次のコマンドの再生オフセット (ナノ秒) を取得する。
+   */
+  long getOffset() {
+    return currentOffset;
+  }
+
+  boolean isLoop() {
+    return loop;
+  }
+
+  /**
+   * 次に変換するコマンドの直前の状態を保存する。
+   */
+  State save() {
+    return new State(index, timeline.size(), currentBPM, currentMeasure, currentVolume, currentOscillator, currentWaveform, currentOffset, loop);
+  }
+
+  /**
+   * コマンドを一つ変換する。
+   */
+  void compileNext() {
+    final var i = index++;
+    final var command = commands.get(i);
+
+    if (updateState(command)) return;
+
+    final var playbackData = new PlaybackData(i, currentBPM, currentMeasure, currentVolume, currentOscillator);
+
+    if (command instanceof ScoreCommand.Rest) {
+      timeline.addNoTone(playbackData, currentOffset);
+
+      currentOffset += Math.round(((ScoreCommand.Rest) command).getDuration() * currentMeasureMillis * 1_000_000);
+
+      return;
+    }
+
+    if (command instanceof ScoreCommand.Stop) {
+      timeline.addNoTone(playbackData, currentOffset);
+
+      stopped = true;
+
+      return;
+    }
+
+    if (command instanceof ScoreCommand.PlayNote) {
+      compilePlayNote((ScoreCommand.PlayNote) command, playbackData);
+
+      return;
+    }
+
+    if (command instanceof ScoreCommand.Pitch) {
+      compilePitch((ScoreCommand.Pitch) command, playbackData);
+
+      return;
+    }
+
+    if (command instanceof ScoreCommand.Vibrato) {
+      compileVibrato((ScoreCommand.Vibrato) command, playbackData);
+
+      return;
+    }
+
+    if (command instanceof ScoreCommand.Use) {
+      currentOscillator = ((ScoreCommand.Use) command).getOscillator();
+
+      if (currentWaveform != currentOscillator.getWaveform()) {
+        currentWaveform = currentOscillator.getWaveform();
+
+        timeline.addChangeWaveform(playbackData, currentOffset, currentOscillator.getWaveform());
+      }
+    }
+  }
+
+  // Applies the commands that only change the state, and returns whether the command was one of them
+  private boolean updateState(ScoreCommand command) {
+    if (command instanceof ScoreCommand.Replay) {
+      loop = true;
+
+      return true;
+    }
+
+    if (command instanceof ScoreCommand.ChangeBPM) {
+      currentBPM = ((ScoreCommand.ChangeBPM) command).getBPM();
+      currentMeasureMillis = Notes.toDurationMillis(currentBPM, currentMeasure);
+
+      return true;
+    }
+
+    if (command instanceof ScoreCommand.ChangeMeasure) {
+      currentMeasure = ((ScoreCommand.ChangeMeasure) command).getMeasure();
+      currentMeasureMillis = Notes.toDurationMillis(currentBPM, currentMeasure);
+
+      return true;
+    }
+
+    if (command instanceof ScoreCommand.ChangeVolume) {
+      currentVolume = ((ScoreCommand.ChangeVolume) command).getVolume();
+
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * 残りのコマンドを並列に変換する。
+   * まず演奏状態と再生オフセットのみを求めながらコマンドを読み進め、区間の境界での状態を記録する。
+   * 次に各区間を記録した状態から ForkJoinPool 上で並列に変換し、結果を順につなぎ合わせる。
+   * 出力されるイベントと保存される状態は、{@link #compileNext()} で一つずつ変換した場合と同じになる。
+   *
+   * @param interval    状態を保存する間隔 (コマンド数)。区間の境界はこの倍数に揃えられる
+   * @param checkpoints 保存した状態の出力先
+   */
+  void compileParallel(int interval, List<State> checkpoints) {
+    final var pool = ForkJoinPool.commonPool();
+    final var remaining = commands.size() - index;
+    final var chunkCount = Math.min(remaining / MIN_CHUNK_COMMANDS, pool.getParallelism() * CHUNKS_PER_THREAD);
+
+    if (chunkCount <= 1) {
+      while (hasNext()) {
+        compileNext();
+
+        if (index % interval == 0) checkpoints.add(save());
+      }
+
+      return;
+    }
+
+    final var first = index;
+    final var chunkCommands = ((remaining + chunkCount - 1) / chunkCount + interval - 1) / interval * interval;
+    final var chunkStarts = new ArrayList<State>();
+
+    // The state left by this pass is the same as after compiling every command
+    while (hasNext()) {
+      if ((index - first) % chunkCommands == 0) chunkStarts.add(save());
+
+      skipNext();
+    }
+
+    final var tasks = new ArrayList<ForkJoinTask<Chunk>>(chunkStarts.size());
+
+    for (final var start : chunkStarts) {
+      tasks.add(pool.submit(() -> compileChunk(start, commands, sampling, start.index + chunkCommands, interval)));
+    }
+
+    for (final var task : tasks) {
+      task.quietlyJoin();
+
+      // The first error in the command order is reported, as in sequential compilation
+      final var exception = task.getException();
+
+      if (exception instanceof RuntimeException) throw (RuntimeException) exception;
+      if (exception instanceof Error) throw (Error) exception;
+
+      final var chunk = task.getRawResult();
+      final var eventBase = timeline.size();
+
+      for (final var checkpoint : chunk.checkpoints) {
+        checkpoints.add(checkpoint.withEventCount(checkpoint.eventCount + eventBase));
+      }
+
+      timeline.append(chunk.timeline);
+    }
+  }
+
+  private static Chunk compileChunk(State start, List<ScoreCommand> commands, EnvelopeSampling sampling, int end, int interval) {
+    final var chunk = new Chunk();
+    final var compiler = new PlaybackCompiler(start, commands, chunk.timeline, sampling);
+
+    while (compiler.hasNext() && compiler.index < end) {
+      compiler.compileNext();
+
+      if (compiler.index % interval == 0) chunk.checkpoints.add(compiler.save());
+    }
+
+    return chunk;
+  }
+
+  // Reads a command updating only the state and the offset, which must advance exactly as in compileNext
+  private void skipNext() {
+    final var command = commands.get(index++);
+
+    if (updateState(command)) return;
+
+    if (command instanceof ScoreCommand.Rest) {
+      currentOffset += Math.round(((ScoreCommand.Rest) command).getDuration() * currentMeasureMillis * 1_000_000);
+    } else if (command instanceof ScoreCommand.Stop) {
+      stopped = true;
+    } else if (command instanceof ScoreCommand.PlayNote) {
+      final var playNote = (ScoreCommand.PlayNote) command;
+
+      if (currentOscillator.isConstantVolume()) {
+        currentOffset += Math.round(playNote.getNextNoteDuration() * currentMeasureMillis * 1_000_000);
+      } else {
+        skipEnvelope(playNote.getDuration() * currentMeasureMillis);
+        skipRemaining(playNote.getDuration(), playNote.getNextNoteDuration(), null);
+      }
+    } else if (command instanceof ScoreCommand.Pitch) {
+      final var pitch = (ScoreCommand.Pitch) command;
+      final var quality = pitch.getQuality();
+
+      // The slide always has both ends, with the interpolated frequencies between them
+      currentOffset += (Math.max(quality - 2, 0) + 2) * fragmentDuration(pitch.getDuration(), currentMeasure * quality);
+
+      skipRemaining(pitch.getDuration(), pitch.getNextNoteDuration(), null);
+    } else if (command instanceof ScoreCommand.Vibrato) {
+      final var vibrato = (ScoreCommand.Vibrato) command;
+
+      currentOffset += vibrato.getCount() * fragmentDuration(vibrato.getDuration(), currentMeasure * vibrato.getCount());
+
+      skipRemaining(vibrato.getDuration(), vibrato.getNextNoteDuration(), null);
+    } else if (command instanceof ScoreCommand.Use) {
+      currentOscillator = ((ScoreCommand.Use) command).getOscillator();
+      currentWaveform = currentOscillator.getWaveform();
+    }
+  }
+
+  // Advances the offset over the samples of the envelope, as compilePlayNote does
+  private void skipEnvelope(double durationMillis) {
+    final var oscillatorDurationMillis = currentOscillator.getDuration();
+    final var durationMillisPerSample = currentOscillator.getDurationPerSample();
+
+    var prevDurationMillis = 0.0;
+
+    while (prevDurationMillis < durationMillis) {
+      final var nextDurationMillis = Math.min(prevDurationMillis + durationMillisPerSample, durationMillis);
+
+      currentOffset += Math.round((nextDurationMillis - prevDurationMillis) * 1_000_000);
+
+      if (nextDurationMillis / oscillatorDurationMillis >= 1.0) break;
+
+      prevDurationMillis = nextDurationMillis;
+    }
+
+    if (durationMillis > oscillatorDurationMillis) {
+      currentOffset += Math.round((durationMillis - oscillatorDurationMillis) * 1_000_000);
+    }
+  }
+
+  private long fragmentDuration(float duration, int fragmentMeasure) {
+    return Math.round(duration * Notes.toDurationMillis(currentBPM, fragmentMeasure) * 1_000_000);
+  }
+
+  private void compilePlayNote(ScoreCommand.PlayNote playNote, PlaybackData playbackData) {
+    final var duration = playNote.getDuration();
+    final var nextNoteDuration = playNote.getNextNoteDuration();
+
+    final var frequency = playNote.getFrequency().get();
+
+    if (currentOscillator.isConstantVolume()) {
+      final var actualVolume = currentVolume * currentOscillator.getStartVolume();
+
+      if (Math.abs(nextNoteDuration - duration) > EPSILON)
+        timeline.addTone(
+            playbackData,
+            frequency,
+            actualVolume,
+            currentOffset,
+            Math.round(duration * currentMeasureMillis * 1_000_000)
+        );
+      else
+        timeline.addTone(playbackData, frequency, actualVolume, currentOffset);
+
+      currentOffset += Math.round(nextNoteDuration * currentMeasureMillis * 1_000_000);
+
+      return;
+    }
+
+    final var durationMillis = duration * currentMeasureMillis;
+    final var oscillatorDurationMillis = currentOscillator.getDuration();
+    final var durationMillisPerSample = currentOscillator.getDurationPerSample();
+
+    var prevDurationMillis = 0.0;
+    var sample = 0;
+
+    // The last emitted fragment, against which the adaptive sampling measures the change
+    var lastVolume = Double.NaN;
+    var lastOffset = currentOffset;
+
+    while (prevDurationMillis < durationMillis) {
+      final var fullSample = prevDurationMillis + durationMillisPerSample <= durationMillis;
+      final var nextDurationMillis = Math.min(prevDurationMillis + durationMillisPerSample, durationMillis);
+      final var fragmentDuration = Math.round((nextDurationMillis - prevDurationMillis) * 1_000_000);
+
+      final var t = nextDurationMillis / oscillatorDurationMillis;
+
+      sample++;
+
+      // Only a note cut short ends between the sample points of the envelope
+      final var actualVolume = currentVolume * (fullSample ? currentOscillator.getSampleVolume(sample) : currentOscillator.calculateVolume(t));
+
+      if (sample == 1 || sampling.shouldEmit(lastVolume, actualVolume, currentOffset - lastOffset)) {
+        timeline.addTone(
+            playbackData,
+            frequency,
+            actualVolume,
+            currentOffset
+        );
+
+        lastVolume = actualVolume;
+        lastOffset = currentOffset;
+      }
+
+      currentOffset += fragmentDuration;
+
+      if (t >= 1.0) {
+        break;
+      }
+
+      prevDurationMillis = nextDurationMillis;
+    }
+
+    // handle overshoot
+    if (durationMillis > oscillatorDurationMillis) {
+      final var overshootDuration = Math.round((durationMillis - oscillatorDurationMillis) * 1_000_000);
+
+      timeline.addTone(
+          playbackData,
+          frequency,
+          currentVolume * currentOscillator.getEndVolume(),
+          currentOffset,
+          overshootDuration
+      );
+
+      currentOffset += overshootDuration;
+    }
+
+    skipRemaining(duration, nextNoteDuration, playbackData);
+  }
+
+  private void compilePitch(ScoreCommand.Pitch pitch, PlaybackData playbackData) {
+    final var duration = pitch.getDuration();
+    final var nextNoteDuration = pitch.getNextNoteDuration();
+
+    final var beforeNoteFrequency = pitch.getBeforeFrequency().get();
+    final var afterNoteFrequency = pitch.getAfterFrequency().get();
+
+    final var quality = pitch.getQuality();
+    final var function = pitch.getFunction();
+
+    final var count = Math.max(quality - 2, 0) + 2;
+    final var frequencies = fragmentFrequencies(count);
+
+    frequencies[0] = beforeNoteFrequency;
+
+    for (int j = 1; j < quality - 1; j++) {
+      final var t = function.applyAsDouble((double) j / quality);
+
+      frequencies[j] = beforeNoteFrequency * (1 - t) + afterNoteFrequency * t; // linear interpolation
+    }
+
+    frequencies[count - 1] = afterNoteFrequency;
+
+    compileFragments(frequencies, count, duration, currentMeasure * quality, playbackData);
+
+    skipRemaining(duration, nextNoteDuration, playbackData);
+  }
+
+  private void compileVibrato(ScoreCommand.Vibrato vibrato, PlaybackData playbackData) {
+    final var duration = vibrato.getDuration();
+    final var nextNoteDuration = vibrato.getNextNoteDuration();
+
+    final var note1Frequency = vibrato.getFrequency1().get();
+    final var note2Frequency = vibrato.getFrequency2().get();
+
+    final var count = vibrato.getCount();
+
+    final var frequencies = fragmentFrequencies(count);
+
+    for (int j = 0; j < count; j++) {
+      frequencies[j] = j % 2 == 0 ? note1Frequency : note2Frequency;
+    }
+
+    compileFragments(frequencies, count, duration, currentMeasure * count, playbackData);
+
+    skipRemaining(duration, nextNoteDuration, playbackData);
+  }
+
+  // Buffer for at least the given number of fragments, grown as needed
+  private double[] fragmentFrequencies(int count) {
+    if (fragmentFrequencies.length < count) {
+      fragmentFrequencies = new double[Math.max(count, fragmentFrequencies.length * 2)];
+    }
+
+    return fragmentFrequencies;
+  }
+
+  // Plays the first count frequencies one after another, each lasting the duration in the fragment measure
+  private void compileFragments(double[] frequencies, int count, float duration, int fragmentMeasure, PlaybackData playbackData) {
+    final var fragmentMeasureMillis = Notes.toDurationMillis(currentBPM, fragmentMeasure);
+
+    final var unitT = duration * fragmentMeasureMillis / currentOscillator.getDuration();
+    final var fragmentDuration = fragmentDuration(duration, fragmentMeasure);
+
+    for (int j = 0; j < count; j++) {
+      final var frequency = frequencies[j];
+
+      var t = j * unitT;
+
+      if (t > 1) t = 1;
+
+      final var actualVolume = currentVolume * currentOscillator.calculateVolume(t);
+
+      timeline.addTone(
+          playbackData,
+          frequency,
+          actualVolume,
+          currentOffset
+      );
+
+      currentOffset += fragmentDuration;
+    }
+  }
+
+  // Rests for the rest of the note, unless the playback data is null as when only the offset is needed
+  private void skipRemaining(float duration, float nextNoteDuration, PlaybackData playbackData) {
+    if (Math.abs(nextNoteDuration - duration) > EPSILON) {
+      if (playbackData != null) timeline.addNoTone(playbackData, currentOffset);
+
+      // skip the remaining duration
+      currentOffset += Math.round((nextNoteDuration - duration) * currentMeasureMillis * 1_000_000);
+    }
+  }
+
+  /**
+   * 並列に変換した区間の結果
+   */
+  private static final class Chunk {
+    private final PlaybackTimeline timeline = new PlaybackTimeline();
+    private final List<State> checkpoints = new ArrayList<>();
+  }
+
+  /**
+   * あるコマンドを変換する直前の演奏状態
+   */
+  static final class State {
+    // Approximate size of an instance in bytes, the oscillator being shared with the score
+    static final int ESTIMATED_SIZE = 64;
+
+    private final int index;
+    private final int eventCount;
+    private final float bpm;
+    private final int measure;
+    private final float volume;
+    private final Oscillator oscillator;
+    private final WaveformType waveform;
+    private final long offset;
+    private final boolean loop;
+
+    State(int index, int eventCount, float bpm, int measure, float volume, Oscillator oscillator, WaveformType waveform, long offset, boolean loop) {
+      this.index = index;
+      this.eventCount = eventCount;
+      this.bpm = bpm;
+      this.measure = measure;
+      this.volume = volume;
+      this.oscillator = oscillator;
+      this.waveform = waveform;
+      this.offset = offset;
+      this.loop = loop;
+    }
+
+    // Same state with a different number of events, for the states of a chunk compiled separately
+    private State withEventCount(int eventCount) {
+      return new State(index, eventCount, bpm, measure, volume, oscillator, waveform, offset, loop);
+    }
+
+    /**
+     * 次に変換するコマンドの番号
+     */
+    int getIndex() {
+      return index;
+    }
+
+    /**
+     * この状態までに出力されたイベントの数
+     */
+    int getEventCount() {
+      return eventCount;
+    }
+
+    float getBPM() {
+      return bpm;
+    }
+
+    int getMeasure() {
+      return measure;
+    }
+
+    float getVolume() {
+      return volume;
+    }
+
+    Oscillator getOscillator() {
+      return oscillator;
+    }
+
+    WaveformType getWaveform() {
+      return waveform;
+    }
+
+    /**
+     * 再生オフセット (ナノ秒)
+     */
+    long getOffset() {
+      return offset;
+    }
+
+    boolean isLoop() {
+      return loop;
+    }
+  }
+}
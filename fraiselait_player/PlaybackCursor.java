@@ -0,0 +1,298 @@
+import dev.wycey.mido.fraiselait.builtins.WaveformType;
+
+import java.time.Duration;
+
+/**
+ * パートのイベントを先頭から順に読み進めるカーソル。
+ * 作成済みの {@link PlaybackTimeline} を読むものと、譜面のコマンドを読み進めながら逐次的に変換するものがある。
+ * 一度の再生につき一つ作成し、再生スレッドからのみ使用する。
+ */
+abstract class PlaybackCursor {
+  /**
+   * 作成済みの再生データを読むカーソルを作成する。
+   *
+   * @param timeline      パートの再生データ
+   * @param score         パートの譜面
+   * @param totalDuration パートの長さ
+   * @param loop          パートがループするかどうか
+   */
+  static PlaybackCursor of(PlaybackTimeline timeline, Score score, Duration totalDuration, boolean loop) {
+    return new TimelineCursor(timeline, score, totalDuration, loop);
+  }
+
+  /**
+   * 譜面のコマンドを逐次的に変換するカーソルを作成する。
+   * 保持されるのは演奏状態と、変換中のコマンドのイベントのみとなる。
+   *
+   * @param score    変換する譜面
+   * @param sampling エンベロープのサンプリング方法
+   */
+  static PlaybackCursor streaming(Score score, EnvelopeSampling sampling) {
+    return new StreamingCursor(score, sampling);
+  }
+
+  /**
+   * 現在のイベントがあるかどうか。すべてのイベントを読み終えた場合は false
+   */
+  abstract boolean hasEvent();
+
+  /**
+   * 現在のイベントが最後のイベントかどうか
+   */
+  abstract boolean isLast();
+
+  /**
+   * 次のイベントに進む。
+   */
+  abstract void advance();
+
+  /**
+   * 指定したオフセット (ナノ秒) 以降で最初に再生されるイベントまで進む。
+   */
+  abstract void seek(long offset);
+
+  abstract byte getKind();
+
+  /**
+   * 再生オフセット (ナノ秒) を取得する。
+   */
+  abstract long getOffset();
+
+  abstract float getFrequency();
+
+  abstract float getVolume();
+
+  /**
+   * @return 再生時間が指定されていないイベントの場合は null
+   */
+  abstract Duration getDuration();
+
+  /**
+   * @return 波形を切り替えるイベントでない場合は null
+   */
+  abstract WaveformType getWaveform();
+
+  abstract PlaybackData getPlaybackData();
+
+  /**
+   * 現在のイベントの時点で使われている波形を取得する。すべてのイベントを読み終えた場合は最後の波形となる。
+   */
+  abstract WaveformType getCurrentWaveform();
+
+  /**
+   * パートの長さを取得する。逐次的に変換する場合は、最後のイベントに達するまで確定しない。
+   */
+  abstract Duration getTotalDuration();
+
+  /**
+   * パートがループするかどうか。逐次的に変換する場合は、最後のイベントに達するまで確定しない。
+   */
+  abstract boolean isLoop();
+
+  private static final class TimelineCursor extends PlaybackCursor {
+    private final PlaybackTimeline timeline;
+    private final Score score;
+    private final Duration totalDuration;
+    private final boolean loop;
+
+    private int index = 0;
+
+    private TimelineCursor(PlaybackTimeline timeline, Score score, Duration totalDuration, boolean loop) {
+      this.timeline = timeline;
+      this.score = score;
+      this.totalDuration = totalDuration;
+      this.loop = loop;
+    }
+
+    @Override
+    boolean hasEvent() {
+      return index < timeline.size();
+    }
+
+    @Override
+    boolean isLast() {
+      return index == timeline.size() - 1;
+    }
+
+    @Override
+    void advance() {
+      index++;
+    }
+
+    @Override
+    void seek(long offset) {
+      index = Math.max(index, timeline.indexAt(offset));
+    }
+
+    @Override
+    byte getKind() {
+      return timeline.getKind(index);
+    }
+
+    @Override
+    long getOffset() {
+      return timeline.getOffset(index);
+    }
+
+    @Override
+    float getFrequency() {
+      return timeline.getFrequency(index);
+    }
+
+    @Override
+    float getVolume() {
+      return timeline.getVolume(index);
+    }
+
+    @Override
+    Duration getDuration() {
+      return timeline.getDuration(index);
+    }
+
+    @Override
+    WaveformType getWaveform() {
+      return timeline.getWaveform(index);
+    }
+
+    @Override
+    PlaybackData getPlaybackData() {
+      return timeline.getPlaybackData(index);
+    }
+
+    @Override
+    WaveformType getCurrentWaveform() {
+      final var waveform = timeline.getWaveformAt(Math.min(index, timeline.size() - 1));
+
+      return waveform != null ? waveform : score.getStartingOscillator().getWaveform();
+    }
+
+    @Override
+    Duration getTotalDuration() {
+      return totalDuration;
+    }
+
+    @Override
+    boolean isLoop() {
+      return loop;
+    }
+  }
+
+  private static final class StreamingCursor extends PlaybackCursor {
+    // Events of the commands being played, discarded once they have been passed
+    private final PlaybackTimeline window = new PlaybackTimeline();
+    private final PlaybackCompiler compiler;
+
+    private int index = 0;
+    private WaveformType currentWaveform;
+
+    private StreamingCursor(Score score, EnvelopeSampling sampling) {
+      compiler = new PlaybackCompiler(score, score.getCommands(), window, sampling);
+      currentWaveform = score.getStartingOscillator().getWaveform();
+
+      enter();
+    }
+
+    // Compiles commands until the window has the event, and returns false if the score ends before it
+    private boolean fill(int index) {
+      while (index >= window.size()) {
+        if (!compiler.hasNext()) return false;
+
+        compiler.compileNext();
+      }
+
+      return true;
+    }
+
+    // Moves into the event at the index, keeping track of the waveform
+    private void enter() {
+      if (index >= window.size()) {
+        window.discardBefore(index);
+        index = 0;
+      }
+
+      if (!fill(index)) return;
+
+      final var waveform = window.getWaveform(index);
+
+      if (waveform != null) currentWaveform = waveform;
+    }
+
+    @Override
+    boolean hasEvent() {
+      return index < window.size();
+    }
+
+    @Override
+    boolean isLast() {
+      // Keep only the current event while looking ahead
+      window.discardBefore(index);
+      index = 0;
+
+      return !fill(1);
+    }
+
+    @Override
+    void advance() {
+      index++;
+
+      enter();
+    }
+
+    @Override
+    void seek(long offset) {
+      while (hasEvent() && getOffset() < offset) {
+        advance();
+      }
+    }
+
+    @Override
+    byte getKind() {
+      return window.getKind(index);
+    }
+
+    @Override
+    long getOffset() {
+      return window.getOffset(index);
+    }
+
+    @Override
+    float getFrequency() {
+      return window.getFrequency(index);
+    }
+
+    @Override
+    float getVolume() {
+      return window.getVolume(index);
+    }
+
+    @Override
+    Duration getDuration() {
+      return window.getDuration(index);
+    }
+
+    @Override
+    WaveformType getWaveform() {
+      return window.getWaveform(index);
+    }
+
+    @Override
+    PlaybackData getPlaybackData() {
+      return window.getPlaybackData(index);
+    }
+
+    @Override
+    WaveformType getCurrentWaveform() {
+      return currentWaveform;
+    }
+
+    @Override
+    Duration getTotalDuration() {
+      return Duration.ofNanos(compiler.getOffset());
+    }
+
+    @Override
+    boolean isLoop() {
+      return compiler.isLoop();
+    }
+  }
+}
@@ -13,4 +13,11 @@ public interface PlaybackOutput {
   void tone(double frequency, double volume, Duration duration);
 
   void noTone();
+
+  /**
+   * 続くコマンドの再生位置を通知する。{@link PlayerSession#render(java.util.List)} で実時間を待たずに出力する場合のみ呼び出される。
+   *
+   * @param position 曲の先頭からの時間
+   */
+  default void setPosition(Duration position) {}
 }
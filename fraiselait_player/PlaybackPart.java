@@ -1,403 +1,374 @@
-import dev.wycey.mido.fraiselait.builtins.WaveformType;
-
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicReference;
 
-/**
- * 音符の再生データ
- * ナノ秒単位で変換された再生オフセット・再生時間を保持する。
- */
-class SoundData {
-  final PlaybackData playbackData;
-  final Double frequency;
-  final Double actualVolume;
-  final Duration offset;
-  final Duration duration;
-  final WaveformType waveformType;
-
-  private SoundData(PlaybackData playbackData, Double frequency, Double actualVolume, Duration offset, Duration duration, WaveformType waveformType) {
-    this.playbackData = playbackData;
-    this.frequency = frequency;
-    this.actualVolume = actualVolume;
-    this.offset = offset;
-    this.duration = duration;
-    this.waveformType = waveformType;
-  }
-
-  static SoundData tone(PlaybackData playbackData, double frequency, double actualVolume, Duration offset, Duration duration) {
-    return new SoundData(playbackData, frequency, actualVolume, offset, duration, null);
-  }
-
-  static SoundData tone(PlaybackData playbackData, double frequency, double actualVolume, Duration offset) {
-    return new SoundData(playbackData, frequency, actualVolume, offset, null, null);
-  }
-
-  static SoundData noTone(PlaybackData playbackData, Duration offset) {
-    return new SoundData(playbackData, null, null, offset, null, null);
-  }
-
-  static SoundData changeWaveform(PlaybackData playbackData, Duration offset, WaveformType waveformType) {
-    return new SoundData(playbackData, null, null, offset, null, waveformType);
-  }
-}
-
 /**
  * パート毎の再生データ
  * 実際の演奏では、これと開始時刻 (ナノ秒) を基に行う
  */
 public class PlaybackPart {
-  private static final double EPSILON = 1e-6;
+  // Number of commands between saved compiler states, used to resume compilation on reload
+  private static final int CHECKPOINT_INTERVAL = 64;
 
+  // Parts with at least this many commands left to compile are compiled in parallel
+  private static final int PARALLEL_COMPILING_COMMANDS = 16384;
+
+  private final Score score;
   private final AtomicReference<PlaybackData> playbackData;
   private final AtomicReference<Float> actualVolume = new AtomicReference<>(1.0f);
-  private final List<SoundData> soundData;
-  private final Duration totalDuration;
-  private final boolean loop;
+  private final PlaybackTimeline timeline;
+  private final List<PlaybackCompiler.State> checkpoints;
+  private final EnvelopeSampling sampling;
+
+  // Played instead of the timeline once minimized, while the timeline is kept for recompilation and the cache
+  private volatile PlaybackTimeline minimizedTimeline;
+
+  // Created on first use, as only seeking and swapping need it
+  private volatile TempoMap tempoMap;
+
+  // Known only after a pass over the whole score for streaming parts
+  private volatile Duration totalDuration;
+  private volatile boolean loop;
 
   private PlaybackOutput output;
 
   PlaybackPart(Score score) {
+    this(score, null, null, EnvelopeSampling.FIXED);
+  }
+
+  /**
+   * 再読み込みされた譜面の再生データを作成する。
+   * 変更箇所より前の再生データは以前のものを再利用し、変更箇所の直前に保存された演奏状態から変換を再開する。
+   *
+   * @param score    再読み込みされた譜面
+   * @param previous 以前の譜面の再生データ
+   * @param diff     以前の譜面との差分
+   * @param sampling エンベロープのサンプリング方法。以前の再生データと異なる場合は再利用しない
+   */
+  PlaybackPart(Score score, PlaybackPart previous, ScoreDiff diff, EnvelopeSampling sampling) {
     Objects.requireNonNull(score, "Score must not be null");
 
-    var currentBPM = score.getStartingBPM();
-    var currentMeasure = score.getStartingMeasure();
-    var currentVolume = 1f;
-    var currentOscillator = score.getStartingOscillator();
-    var currentWaveform = currentOscillator.getWaveform();
+    this.score = score;
+    this.sampling = sampling;
 
-    playbackData = new AtomicReference<>(new PlaybackData(0, currentBPM, currentMeasure, currentVolume, currentOscillator));
+    final var commands = score.getCommands();
+    final var checkpoints = new ArrayList<PlaybackCompiler.State>();
 
-    var currentMeasureMillis = Notes.toDurationMillis(currentBPM, currentMeasure);
-    var currentOffset = Duration.ofNanos(Math.round(score.getOffset() * 1_000_000));
+    final PlaybackTimeline timeline;
+    final PlaybackCompiler compiler;
 
-    final var soundData = new ArrayList<SoundData>();
-    final var commands = score.getCommands();
-    var loop = false;
+    final var resumeFrom = previous != null && diff != null && previous.sampling.equals(sampling) ? previous.findCheckpoint(diff.getStart()) : null;
 
-    // Set default oscillator waveform at the beginning
-    soundData.add(SoundData.changeWaveform(playbackData.get(), currentOffset, currentWaveform));
+    if (resumeFrom != null) {
+      timeline = previous.timeline.copyOf(resumeFrom.getEventCount());
+      checkpoints.addAll(previous.checkpoints.subList(0, resumeFrom.getIndex() / CHECKPOINT_INTERVAL + 1));
 
-    for (int i = 0; i < commands.size(); i++) {
-      final var command = commands.get(i);
+      compiler = new PlaybackCompiler(resumeFrom, commands, timeline, sampling);
+    } else {
+      timeline = new PlaybackTimeline();
+      compiler = new PlaybackCompiler(score, commands, timeline, sampling);
 
-      if (command instanceof ScoreCommand.Replay) {
-        loop = true;
+      checkpoints.add(compiler.save());
+    }
 
-        continue;
-      }
+    // The first event carries the starting state
+    playbackData = new AtomicReference<>(timeline.getPlaybackData(0));
 
-      if (command instanceof ScoreCommand.ChangeBPM) {
-        currentBPM = ((ScoreCommand.ChangeBPM) command).getBPM();
-        currentMeasureMillis = Notes.toDurationMillis(currentBPM, currentMeasure);
+    if (commands.size() - compiler.getIndex() >= PARALLEL_COMPILING_COMMANDS) {
+      compiler.compileParallel(CHECKPOINT_INTERVAL, checkpoints);
+    } else {
+      while (compiler.hasNext()) {
+        compiler.compileNext();
 
-        continue;
+        if (compiler.getIndex() % CHECKPOINT_INTERVAL == 0) checkpoints.add(compiler.save());
       }
+    }
 
-      if (command instanceof ScoreCommand.ChangeMeasure) {
-        currentMeasure = ((ScoreCommand.ChangeMeasure) command).getMeasure();
-        currentMeasureMillis = Notes.toDurationMillis(currentBPM, currentMeasure);
+    this.timeline = timeline;
+    this.checkpoints = checkpoints;
+    this.totalDuration = Duration.ofNanos(compiler.getOffset());
+    this.loop = compiler.isLoop();
+  }
 
-        continue;
-      }
+  /**
+   * キャッシュから読み込まれた再生データを作成する。
+   */
+  PlaybackPart(Score score, PlaybackTimeline timeline, List<PlaybackCompiler.State> checkpoints, Duration totalDuration, boolean loop) {
+    this(score, timeline, checkpoints, totalDuration, loop, EnvelopeSampling.FIXED);
+  }
 
-      if (command instanceof ScoreCommand.ChangeVolume) {
-        currentVolume = ((ScoreCommand.ChangeVolume) command).getVolume();
+  private PlaybackPart(Score score, PlaybackTimeline timeline, List<PlaybackCompiler.State> checkpoints, Duration totalDuration, boolean loop, EnvelopeSampling sampling) {
+    this.score = score;
+    this.sampling = sampling;
+    this.timeline = timeline;
+    this.checkpoints = checkpoints;
+    this.totalDuration = totalDuration;
+    this.loop = loop;
 
-        continue;
-      }
+    playbackData = new AtomicReference<>(timeline.getPlaybackData(0));
+  }
 
-      final var playbackData = new PlaybackData(i, currentBPM, currentMeasure, currentVolume, currentOscillator);
+  private PlaybackPart(Score score, EnvelopeSampling sampling, PlaybackData initialData) {
+    this.score = score;
+    this.sampling = sampling;
+    this.timeline = null;
+    this.checkpoints = List.of();
 
-      if (command instanceof ScoreCommand.Rest) {
-        soundData.add(SoundData.noTone(playbackData, currentOffset));
+    playbackData = new AtomicReference<>(initialData);
+  }
 
-        currentOffset = currentOffset.plus(
-            Duration.ofNanos(Math.round(((ScoreCommand.Rest) command).getDuration() * currentMeasureMillis * 1_000_000))
-        );
+  /**
+   * 再生データを事前に作成せず、再生しながら譜面のコマンドを逐次的に変換するパートを作成する。
+   * 保持されるのは演奏状態と再生中のコマンドのイベントのみのため、長い譜面でもメモリ使用量は一定となり、変換を待たずに再生を始められる。
+   * パートの長さが必要になった場合は、その時点で譜面全体を一度読み進める。
+   *
+   * @param score    譜面
+   * @param sampling エンベロープのサンプリング方法
+   */
+  static PlaybackPart streaming(Score score, EnvelopeSampling sampling) {
+    Objects.requireNonNull(score, "Score must not be null");
 
-        continue;
-      }
+    return new PlaybackPart(score, sampling, PlaybackCursor.streaming(score, sampling).getPlaybackData());
+  }
 
-      if (command instanceof ScoreCommand.Stop) {
-        soundData.add(SoundData.noTone(playbackData, currentOffset));
+  /**
+   * 譜面の再生データを作成する。
+   * 同じ譜面の再生データがメモリ上にある場合は、それを共有する。
+   * 譜面がキャッシュを通じて読み込まれている場合は、キャッシュされた再生データを読み込むか、作成した再生データをキャッシュに保存する。
+   * ディスクにキャッシュされるのは、サンプル点ごとにエンベロープを出力した再生データのみとなる。
+   *
+   * @param score    譜面
+   * @param previous 以前の譜面の再生データ (ない場合は null)
+   * @param diff     以前の譜面との差分 (ない場合は null)
+   * @param sampling エンベロープのサンプリング方法
+   */
+  static PlaybackPart load(Score score, PlaybackPart previous, ScoreDiff diff, EnvelopeSampling sampling) {
+    final var shared = PartCache.getDefault().get(score, sampling);
 
-        break;
-      }
+    if (shared != null) return shared;
 
-      if (command instanceof ScoreCommand.PlayNote) {
-        final var playNote = (ScoreCommand.PlayNote) command;
-
-        final var duration = playNote.getDuration();
-        final var nextNoteDuration = playNote.getNextNoteDuration();
-
-        final var frequency = playNote.getFrequency().get();
-
-        if (currentOscillator.isConstantVolume()) {
-          final var actualVolume = currentVolume * currentOscillator.getStartVolume();
-
-          if (Math.abs(nextNoteDuration - duration) > EPSILON)
-            soundData.add(SoundData.tone(
-                playbackData,
-                frequency,
-                actualVolume,
-                currentOffset,
-                Duration.ofNanos(Math.round(duration * currentMeasureMillis * 1_000_000))
-            ));
-          else
-            soundData.add(SoundData.tone(playbackData, frequency, actualVolume, currentOffset));
-
-          currentOffset = currentOffset.plus(
-              Duration.ofNanos(Math.round(nextNoteDuration * currentMeasureMillis * 1_000_000))
-          );
-        } else {
-          final var durationMillis = duration * currentMeasureMillis;
-          final var oscillatorDurationMillis = currentOscillator.getDuration();
-          final var durationMillisPerSample = currentOscillator.getDurationPerSample();
-
-          var prevDurationMillis = 0.0;
-
-          while (prevDurationMillis < durationMillis) {
-            final var nextDurationMillis = Math.min(prevDurationMillis + durationMillisPerSample, durationMillis);
-            final var fragmentDuration = Duration.ofNanos(Math.round((nextDurationMillis - prevDurationMillis) * 1_000_000));
-
-            final var t = nextDurationMillis / oscillatorDurationMillis;
-            final var actualVolume = currentVolume * currentOscillator.calculateVolume(t);
-
-            soundData.add(SoundData.tone(
-                playbackData,
-                frequency,
-                actualVolume,
-                currentOffset
-            ));
-
-            currentOffset = currentOffset.plus(
-                fragmentDuration
-            );
-
-            if (t >= 1.0) {
-              break;
-            }
-
-            prevDurationMillis = nextDurationMillis;
-          }
-
-          // handle overshoot
-          if (durationMillis > oscillatorDurationMillis) {
-            final var overshootDuration = Duration.ofNanos(Math.round((durationMillis - oscillatorDurationMillis) * 1_000_000));
-
-            soundData.add(SoundData.tone(
-                playbackData,
-                frequency,
-                currentVolume * currentOscillator.getEndVolume(),
-                currentOffset,
-                overshootDuration
-            ));
-
-            currentOffset = currentOffset.plus(
-                overshootDuration
-            );
-          }
-
-          if (Math.abs(nextNoteDuration - duration) > EPSILON) {
-            soundData.add(SoundData.noTone(playbackData, currentOffset));
-
-            // skip the remaining duration
-            currentOffset = currentOffset.plus(
-                Duration.ofNanos(Math.round((nextNoteDuration - duration) * currentMeasureMillis * 1_000_000))
-            );
-          }
-        }
-
-        continue;
-      }
+    final var part = loadOrCompile(score, previous, diff, sampling);
 
-      if (command instanceof ScoreCommand.Pitch) {
-        final var pitch = (ScoreCommand.Pitch) command;
+    PartCache.getDefault().put(part);
 
-        final var duration = pitch.getDuration();
-        final var nextNoteDuration = pitch.getNextNoteDuration();
+    return part;
+  }
 
-        final var beforeNoteFrequency = pitch.getBeforeFrequency().get();
-        final var afterNoteFrequency = pitch.getAfterFrequency().get();
+  private static PlaybackPart loadOrCompile(Score score, PlaybackPart previous, ScoreDiff diff, EnvelopeSampling sampling) {
+    if (!sampling.isFixed()) return new PlaybackPart(score, previous, diff, sampling);
 
-        final var quality = pitch.getQuality();
-        final var function = pitch.getFunction();
+    final var cache = ScoreCache.getDefault();
+    final var cached = cache.loadPart(score);
 
-        final List<Double> frequencies = new ArrayList<>();
+    if (cached != null) return cached;
 
-        frequencies.add(beforeNoteFrequency);
+    final var part = new PlaybackPart(score, previous, diff, sampling);
 
-        for (int j = 1; j < quality - 1; j++) {
-          final var t = function.apply((double) j / quality);
+    cache.storePart(part);
 
-          frequencies.add(
-              beforeNoteFrequency * (1 - t) + afterNoteFrequency * t // linear interpolation
-          );
-        }
+    return part;
+  }
 
-        frequencies.add(afterNoteFrequency);
+  /**
+   * 再生データを共有し、演奏状態と出力先を持たない新しいパートを作成する。
+   * 作成済みの再生データは変更されないため、複数のセッションから同時に再生してよい。
+   *
+   * @param score 同じ内容の譜面
+   */
+  PlaybackPart share(Score score) {
+    return new PlaybackPart(score, timeline, checkpoints, totalDuration, loop, sampling);
+  }
 
-        final var fragmentMeasure = currentMeasure * quality;
-        final var fragmentMeasureMillis = Notes.toDurationMillis(currentBPM, fragmentMeasure);
+  /**
+   * 再生データのおおよそのメモリ使用量 (バイト) を求める。
+   */
+  long estimateSize() {
+    return timeline.estimateSize() + (long) checkpoints.size() * PlaybackCompiler.State.ESTIMATED_SIZE;
+  }
 
-        final var unitT = duration * fragmentMeasureMillis / currentOscillator.getDuration();
-        final var fragmentDuration = Duration.ofNanos(Math.round(duration * fragmentMeasureMillis * 1_000_000));
+  // Latest saved state before the command, or null if nothing can be reused
+  private PlaybackCompiler.State findCheckpoint(int commandIndex) {
+    if (checkpoints.isEmpty()) return null;
 
-        for (int j = 0; j < frequencies.size(); j++) {
-          final var frequency = frequencies.get(j);
+    final var checkpoint = checkpoints.get(Math.min(commandIndex / CHECKPOINT_INTERVAL, checkpoints.size() - 1));
 
-          var t = j * unitT;
+    return checkpoint.getIndex() > 0 ? checkpoint : null;
+  }
 
-          if (t > 1) t = 1;
+  PlaybackPart(Score score, PlaybackOutput output) {
+    this(score);
 
-          final var actualVolume = currentVolume * currentOscillator.calculateVolume(t);
+    Objects.requireNonNull(output, "Output must not be null");
 
-          soundData.add(SoundData.tone(
-              playbackData,
-              frequency,
-              actualVolume,
-              currentOffset
-          ));
+    this.output = output;
+  }
 
-          currentOffset = currentOffset.plus(fragmentDuration);
-        }
+  public Score getScore() {
+    return score;
+  }
 
-        if (Math.abs(nextNoteDuration - duration) > EPSILON) {
-          soundData.add(SoundData.noTone(playbackData, currentOffset));
+  public PlaybackData getPlaybackData() {
+    return playbackData.get();
+  }
 
-          // skip the remaining duration
-          currentOffset = currentOffset.plus(
-              Duration.ofNanos(Math.round((nextNoteDuration - duration) * currentMeasureMillis * 1_000_000))
-          );
-        }
+  void setPlaybackData(PlaybackData value) {
+    playbackData.set(value);
+  }
 
-        continue;
-      }
+  public float getActualVolume() {
+    return actualVolume.get();
+  }
 
-      if (command instanceof ScoreCommand.Vibrato) {
-        final var vibrato = (ScoreCommand.Vibrato) command;
+  void setActualVolume(float volume) {
+    actualVolume.set(volume);
+  }
 
-        final var duration = vibrato.getDuration();
-        final var nextNoteDuration = vibrato.getNextNoteDuration();
+  public PlaybackOutput getOutput() {
+    return output;
+  }
 
-        final var note1Frequency = vibrato.getFrequency1().get();
-        final var note2Frequency = vibrato.getFrequency2().get();
+  public void setOutput(PlaybackOutput output) {
+    this.output = output;
+  }
 
-        final var count = vibrato.getCount();
+  public boolean hasOutput() {
+    return output != null;
+  }
 
-        final var fragmentMeasure = currentMeasure * count;
-        final var fragmentMeasureMillis = Notes.toDurationMillis(currentBPM, fragmentMeasure);
+  /**
+   * 逐次的に変換するパートかどうか
+   */
+  public boolean isStreaming() {
+    return timeline == null;
+  }
 
-        final var frequencies = new ArrayList<Double>();
+  public EnvelopeSampling getEnvelopeSampling() {
+    return sampling;
+  }
 
-        for (int j = 0; j < count; j++) {
-          if (j % 2 == 0) {
-            frequencies.add(note1Frequency);
-          } else {
-            frequencies.add(note2Frequency);
-          }
-        }
+  /**
+   * 再生データを取得する。
+   *
+   * @return 逐次的に変換するパートの場合は null
+   */
+  PlaybackTimeline getTimeline() {
+    return timeline;
+  }
 
-        final var unitT = duration * fragmentMeasureMillis / currentOscillator.getDuration();
-        final var fragmentDuration = Duration.ofNanos(Math.round(duration * fragmentMeasureMillis * 1_000_000));
+  List<PlaybackCompiler.State> getCheckpoints() {
+    return checkpoints;
+  }
 
-        for (int j = 0; j < frequencies.size(); j++) {
-          final var frequency = frequencies.get(j);
+  /**
+   * 出力先に送るコマンドを最小化し、以降の再生では最小化した再生データを使う。
+   * 逐次的に変換するパートは最小化されない。
+   *
+   * @param timedTones 出力先が再生時間付きの tone に対応しているかどうか
+   * @return 削減されたコマンドの数
+   * @see PlaybackTimeline#minimize(boolean)
+   */
+  int minimize(boolean timedTones) {
+    if (isStreaming()) return 0;
 
-          var t = j * unitT;
+    final var minimized = timeline.minimize(timedTones);
 
-          if (t > 1) t = 1;
+    minimizedTimeline = minimized;
 
-          final var actualVolume = currentVolume * currentOscillator.calculateVolume(t);
+    return timeline.size() - minimized.size();
+  }
 
-          soundData.add(SoundData.tone(
-              playbackData,
-              frequency,
-              actualVolume,
-              currentOffset
-          ));
+  /**
+   * 先頭から再生するためのカーソルを作成する。
+   */
+  PlaybackCursor cursor() {
+    if (isStreaming()) return PlaybackCursor.streaming(score, sampling);
 
-          currentOffset = currentOffset.plus(fragmentDuration);
-        }
+    final var minimized = minimizedTimeline;
 
-        if (Math.abs(nextNoteDuration - duration) > EPSILON) {
-          soundData.add(SoundData.noTone(playbackData, currentOffset));
+    return PlaybackCursor.of(minimized != null ? minimized : timeline, score, totalDuration, loop);
+  }
 
-          // skip the remaining duration
-          currentOffset = currentOffset.plus(
-              Duration.ofNanos(Math.round((nextNoteDuration - duration) * currentMeasureMillis * 1_000_000))
-          );
-        }
+  /**
+   * 指定したオフセット (ナノ秒) 以降で最初に再生されるイベントから再生するためのカーソルを作成する。
+   * 最小化した再生データは途中から再生すると鳴らすべき音が分からないため、最小化する前の再生データを使う。
+   */
+  PlaybackCursor cursorAt(long offset) {
+    final var cursor = isStreaming() ? PlaybackCursor.streaming(score, sampling) : PlaybackCursor.of(timeline, score, totalDuration, loop);
 
-        continue;
-      }
+    cursor.seek(offset);
 
-      if (command instanceof ScoreCommand.Use) {
-        currentOscillator = ((ScoreCommand.Use) command).getOscillator();
+    return cursor;
+  }
 
-        if (currentWaveform != currentOscillator.getWaveform()) {
-          currentWaveform = currentOscillator.getWaveform();
+  /**
+   * 時刻とコマンドの対応表を取得する。初回の呼び出し時に作成する。
+   *
+   * @return 逐次的に変換するパートの場合は null
+   */
+  TempoMap getTempoMap() {
+    if (isStreaming()) return null;
 
-          soundData.add(SoundData.changeWaveform(playbackData, currentOffset, currentOscillator.getWaveform()));
-        }
+    var map = tempoMap;
 
-        continue;
-      }
+    if (map == null) {
+      map = TempoMap.of(timeline, score.getCommands().size());
+      tempoMap = map;
     }
 
-    this.soundData = soundData;
-    this.totalDuration = currentOffset;
-    this.loop = loop;
+    return map;
   }
 
-  PlaybackPart(Score score, PlaybackOutput output) {
-    this(score);
-
-    Objects.requireNonNull(output, "Output must not be null");
+  /**
+   * 指定したコマンドが再生されるオフセット (ナノ秒) を取得する。
+   * 逐次的に変換するパートの場合は、そのコマンドまで譜面を読み進めて求める。
+   *
+   * @return コマンド以降に再生されるイベントがない場合はパートの長さ
+   */
+  long offsetOfCommand(int commandIndex) {
+    if (commandIndex < 0 || commandIndex >= score.getCommands().size()) {
+      throw new IndexOutOfBoundsException("Command index out of range: " + commandIndex);
+    }
 
-    this.output = output;
-  }
+    if (!isStreaming()) {
+      final var event = getTempoMap().eventOfCommand(commandIndex);
 
-  public PlaybackData getPlaybackData() {
-    return playbackData.get();
-  }
+      return event < timeline.size() ? timeline.getOffset(event) : getTotalDuration().toNanos();
+    }
 
-  void setPlaybackData(PlaybackData value) {
-    playbackData.set(value);
-  }
+    final var cursor = cursor();
 
-  public float getActualVolume() {
-    return actualVolume.get();
-  }
+    while (cursor.hasEvent() && cursor.getPlaybackData().getIndex() < commandIndex) {
+      cursor.advance();
+    }
 
-  void setActualVolume(float volume) {
-    actualVolume.set(volume);
+    return cursor.hasEvent() ? cursor.getOffset() : cursor.getTotalDuration().toNanos();
   }
 
-  public PlaybackOutput getOutput() {
-    return output;
-  }
+  // Reads through the whole score once, keeping only the current event
+  private synchronized void measure() {
+    if (totalDuration != null) return;
 
-  public void setOutput(PlaybackOutput output) {
-    this.output = output;
-  }
+    final var cursor = PlaybackCursor.streaming(score, sampling);
 
-  public boolean hasOutput() {
-    return output != null;
-  }
+    while (cursor.hasEvent()) {
+      cursor.advance();
+    }
 
-  List<SoundData> getSoundData() {
-    return soundData;
+    loop = cursor.isLoop();
+    totalDuration = cursor.getTotalDuration();
   }
 
   public Duration getTotalDuration() {
+    if (totalDuration == null) measure();
+
     return totalDuration;
   }
 
   public boolean isLoop() {
+    if (totalDuration == null) measure();
+
     return loop;
   }
 }
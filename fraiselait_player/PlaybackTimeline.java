@@ -0,0 +1,440 @@
+import dev.wycey.mido.fraiselait.builtins.WaveformType;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * パートの再生データを時系列に並べたもの。
+ * イベント毎にオブジェクトを作らず、再生オフセット (ナノ秒)・周波数・音量・種類を並列のプリミティブ配列に格納する。
+ * 演奏状態 ({@link PlaybackData}) と再生時間はそれぞれ共有の表に一度だけ格納し、イベントからは表の番号で参照する。
+ * 再生オフセットは実際に再生される順に揃え、前のイベントより小さくならないように格納する。
+ * パートの再生データとして作成された後は変更されないため、複数のスレッドから読み取ってよい。
+ */
+final class PlaybackTimeline {
+  // Event kinds
+  static final byte NO_TONE = 0;
+  static final byte TONE = 1;
+  static final byte TIMED_TONE = 2;
+  static final byte CHANGE_WAVEFORM = 3;
+
+  private static final int INITIAL_CAPACITY = 64;
+  private static final WaveformType[] WAVEFORMS = WaveformType.values();
+
+  private long[] offsets = new long[INITIAL_CAPACITY];
+  private float[] frequencies = new float[INITIAL_CAPACITY];
+  private float[] volumes = new float[INITIAL_CAPACITY];
+  private byte[] kinds = new byte[INITIAL_CAPACITY];
+  private int[] dataIndices = new int[INITIAL_CAPACITY];
+
+  // Index into the duration table for TIMED_TONE, waveform ordinal for CHANGE_WAVEFORM
+  private int[] arguments = new int[INITIAL_CAPACITY];
+
+  // Indices of the CHANGE_WAVEFORM events in ascending order, to find the waveform in use at an event
+  private int[] waveformIndices = new int[INITIAL_CAPACITY];
+  private int waveformCount = 0;
+
+  private final List<PlaybackData> playbackData;
+  private final List<Duration> durations;
+  private final Map<Long, Integer> durationIndices;
+
+  private int size = 0;
+
+  // Largest offset added so far, kept when events are discarded
+  private long lastOffset = Long.MIN_VALUE;
+
+  PlaybackTimeline() {
+    playbackData = new ArrayList<>();
+    durations = new ArrayList<>();
+    durationIndices = new HashMap<>();
+  }
+
+  private PlaybackTimeline(PlaybackTimeline source, int size) {
+    final var capacity = Math.max(size, INITIAL_CAPACITY);
+
+    offsets = Arrays.copyOf(source.offsets, capacity);
+    frequencies = Arrays.copyOf(source.frequencies, capacity);
+    volumes = Arrays.copyOf(source.volumes, capacity);
+    kinds = Arrays.copyOf(source.kinds, capacity);
+    dataIndices = Arrays.copyOf(source.dataIndices, capacity);
+    arguments = Arrays.copyOf(source.arguments, capacity);
+
+    waveformCount = source.countWaveformsBefore(size);
+    waveformIndices = Arrays.copyOf(source.waveformIndices, Math.max(waveformCount, INITIAL_CAPACITY));
+
+    // Playback data are added in order, so the prefix refers to a prefix of the table
+    playbackData = new ArrayList<>(source.playbackData.subList(0, size > 0 ? source.dataIndices[size - 1] + 1 : 0));
+    durations = new ArrayList<>(source.durations);
+    durationIndices = new HashMap<>(source.durationIndices);
+
+    this.size = size;
+    this.lastOffset = size > 0 ? offsets[size - 1] : Long.MIN_VALUE;
+  }
+
+  /**
+   * 先頭から指定した数のイベントを複製する。以降のイベントは複製に追加できる。
+   *
+   * @param size 複製するイベントの数
+   */
+  PlaybackTimeline copyOf(int size) {
+    return new PlaybackTimeline(this, size);
+  }
+
+  void addTone(PlaybackData data, double frequency, double volume, long offset) {
+    add(TONE, data, offset, frequency, volume, 0);
+  }
+
+  void addTone(PlaybackData data, double frequency, double volume, long offset, long duration) {
+    add(TIMED_TONE, data, offset, frequency, volume, indexDuration(duration));
+  }
+
+  void addNoTone(PlaybackData data, long offset) {
+    add(NO_TONE, data, offset, 0, 0, 0);
+  }
+
+  void addChangeWaveform(PlaybackData data, long offset, WaveformType waveform) {
+    add(CHANGE_WAVEFORM, data, offset, 0, 0, waveform.ordinal());
+  }
+
+  private void add(byte kind, PlaybackData data, long offset, double frequency, double volume, int argument) {
+    if (size == kinds.length) grow();
+
+    // Events of a command share its playback data
+    if (playbackData.isEmpty() || playbackData.get(playbackData.size() - 1) != data) playbackData.add(data);
+
+    // A note may start before the rest of the previous one ends, and such events are played as soon as they are reached
+    lastOffset = Math.max(lastOffset, offset);
+
+    offsets[size] = lastOffset;
+    frequencies[size] = (float) frequency;
+    volumes[size] = (float) volume;
+    kinds[size] = kind;
+    dataIndices[size] = playbackData.size() - 1;
+    arguments[size] = argument;
+
+    if (kind == CHANGE_WAVEFORM) addWaveformIndex(size);
+
+    size++;
+  }
+
+  private void addWaveformIndex(int index) {
+    if (waveformCount == waveformIndices.length) waveformIndices = Arrays.copyOf(waveformIndices, waveformCount * 2);
+
+    waveformIndices[waveformCount++] = index;
+  }
+
+  // Number of CHANGE_WAVEFORM events before the index
+  private int countWaveformsBefore(int index) {
+    var low = 0;
+    var high = waveformCount;
+
+    while (low < high) {
+      final var mid = (low + high) >>> 1;
+
+      if (waveformIndices[mid] < index) low = mid + 1;
+      else high = mid;
+    }
+
+    return low;
+  }
+
+  /**
+   * 指定した番号より前のイベントを取り除き、以降のイベントを先頭に詰める。
+   * 逐次的な変換で、再生済みのイベントを保持し続けないために使う。
+   *
+   * @param index 残す最初のイベントの番号
+   */
+  void discardBefore(int index) {
+    if (index == 0) return;
+
+    final var remaining = size - index;
+    final var firstData = remaining > 0 ? dataIndices[index] : playbackData.size();
+
+    System.arraycopy(offsets, index, offsets, 0, remaining);
+    System.arraycopy(frequencies, index, frequencies, 0, remaining);
+    System.arraycopy(volumes, index, volumes, 0, remaining);
+    System.arraycopy(kinds, index, kinds, 0, remaining);
+    System.arraycopy(dataIndices, index, dataIndices, 0, remaining);
+    System.arraycopy(arguments, index, arguments, 0, remaining);
+
+    playbackData.subList(0, firstData).clear();
+
+    final var discardedWaveforms = countWaveformsBefore(index);
+
+    waveformCount -= discardedWaveforms;
+
+    for (int i = 0; i < waveformCount; i++) {
+      waveformIndices[i] = waveformIndices[i + discardedWaveforms] - index;
+    }
+
+    // Only the durations of the remaining events are kept
+    final var previousDurations = new ArrayList<>(durations);
+
+    durations.clear();
+    durationIndices.clear();
+
+    for (int i = 0; i < remaining; i++) {
+      dataIndices[i] -= firstData;
+
+      if (kinds[i] == TIMED_TONE) arguments[i] = indexDuration(previousDurations.get(arguments[i]).toNanos());
+    }
+
+    size = remaining;
+  }
+
+  /**
+   * 別の再生データのイベントを末尾に追加する。並列に変換した区間をつなぎ合わせるために使う。
+   * 追加されるイベントの再生オフセットは、他のイベントの追加と同じく直前までの最大値より小さくならないように揃えられる。
+   *
+   * @param other 追加するイベント
+   */
+  void append(PlaybackTimeline other) {
+    while (size + other.size > kinds.length) {
+      grow();
+    }
+
+    final var dataBase = playbackData.size();
+
+    for (int i = 0; i < other.size; i++) {
+      lastOffset = Math.max(lastOffset, other.offsets[i]);
+      offsets[size + i] = lastOffset;
+    }
+
+    System.arraycopy(other.frequencies, 0, frequencies, size, other.size);
+    System.arraycopy(other.volumes, 0, volumes, size, other.size);
+    System.arraycopy(other.kinds, 0, kinds, size, other.size);
+    System.arraycopy(other.arguments, 0, arguments, size, other.size);
+
+    for (int i = 0; i < other.size; i++) {
+      dataIndices[size + i] = other.dataIndices[i] + dataBase;
+
+      if (other.kinds[i] == TIMED_TONE) arguments[size + i] = indexDuration(other.durations.get(other.arguments[i]).toNanos());
+    }
+
+    for (int i = 0; i < other.waveformCount; i++) {
+      addWaveformIndex(other.waveformIndices[i] + size);
+    }
+
+    playbackData.addAll(other.playbackData);
+
+    size += other.size;
+  }
+
+  /**
+   * 出力先に送られるコマンドが少なくなるように、冗長なイベントを取り除いた再生データを作成する。
+   * <ul>
+   *   <li>すでに使われている波形への切り替え</li>
+   *   <li>鳴っている音と周波数・音量 (float に丸めた値) が同じ tone</li>
+   *   <li>すでに無音のときの noTone と、同じ時刻に次の tone が鳴る noTone</li>
+   * </ul>
+   * を取り除き、timedTones が true の場合は tone と続く noTone を再生時間付きの tone 一つにまとめる。
+   * 最後のイベントはループの再開位置を決めるため、そのまま残す。
+   * 直前のイベントより前の再生オフセットを持つイベントは直前のイベントの直後に再生されるため、実際に再生される時刻に揃える。
+   * 取り除かれたイベントの演奏状態は画面に反映されなくなる。
+   *
+   * @param timedTones 出力先が再生時間付きの tone に対応しているかどうか
+   * @return 取り除いた数は、元のイベント数との差で求められる
+   */
+  PlaybackTimeline minimize(boolean timedTones) {
+    final var result = new PlaybackTimeline();
+
+    // What the output is doing, as far as it can be known from the events sent so far
+    var waveform = -1;
+    var sounding = false;
+    var silent = false;
+    var soundingFrequency = 0f;
+    var soundingVolume = 0f;
+    var soundingIndex = -1;
+    var silentFrom = Long.MAX_VALUE;
+    var offset = Long.MIN_VALUE;
+
+    for (int i = 0; i < size; i++) {
+      final var kind = kinds[i];
+      final var data = getPlaybackData(i);
+
+      // Kept even if redundant, as it decides where a loop restarts
+      final var last = i == size - 1;
+
+      // Events are played in order, so one that is already late is played right after the previous one
+      offset = Math.max(offset, offsets[i]);
+
+      // A timed tone stops by itself
+      if (!sounding && !silent && offset >= silentFrom) silent = true;
+
+      if (kind == CHANGE_WAVEFORM) {
+        if (!last && arguments[i] == waveform) continue;
+
+        waveform = arguments[i];
+        result.add(kind, data, offset, 0, 0, waveform);
+      } else if (kind == TONE) {
+        if (!last && sounding && frequencies[i] == soundingFrequency && volumes[i] == soundingVolume) continue;
+
+        sounding = true;
+        silent = false;
+        silentFrom = Long.MAX_VALUE;
+        soundingFrequency = frequencies[i];
+        soundingVolume = volumes[i];
+        soundingIndex = result.size;
+
+        result.add(kind, data, offset, frequencies[i], volumes[i], 0);
+      } else if (kind == TIMED_TONE) {
+        final var duration = durations.get(arguments[i]).toNanos();
+
+        sounding = false;
+        silent = false;
+        silentFrom = offset + duration;
+
+        result.add(kind, data, offset, frequencies[i], volumes[i], result.indexDuration(duration));
+      } else {
+        if (!last && (silent || (kinds[i + 1] == TONE || kinds[i + 1] == TIMED_TONE) && offsets[i + 1] <= offset)) continue;
+
+        // Outputs take the duration in milliseconds
+        if (!last && timedTones && sounding && offset - result.offsets[soundingIndex] >= 1_000_000) {
+          result.kinds[soundingIndex] = TIMED_TONE;
+          result.arguments[soundingIndex] = result.indexDuration(offset - result.offsets[soundingIndex]);
+
+          sounding = false;
+          silent = true;
+
+          continue;
+        }
+
+        sounding = false;
+        silent = true;
+
+        result.add(kind, data, offset, 0, 0, 0);
+      }
+    }
+
+    return result;
+  }
+
+  private int indexDuration(long duration) {
+    return durationIndices.computeIfAbsent(duration, key -> {
+      durations.add(Duration.ofNanos(key));
+
+      return durations.size() - 1;
+    });
+  }
+
+  private void grow() {
+    final var capacity = kinds.length * 2;
+
+    offsets = Arrays.copyOf(offsets, capacity);
+    frequencies = Arrays.copyOf(frequencies, capacity);
+    volumes = Arrays.copyOf(volumes, capacity);
+    kinds = Arrays.copyOf(kinds, capacity);
+    dataIndices = Arrays.copyOf(dataIndices, capacity);
+    arguments = Arrays.copyOf(arguments, capacity);
+  }
+
+  /**
+   * おおよそのメモリ使用量 (バイト) を求める。演奏状態のオシレーターは譜面と共有されるため含めない。
+   */
+  long estimateSize() {
+    // Arrays per event: offset, frequency, volume, kind, playback data index and argument
+    final var eventBytes = 8 + 4 + 4 + 1 + 4 + 4;
+    // A playback data instance and its reference in the table
+    final var playbackDataBytes = 40;
+    // A duration instance, its reference in the table and its entry in the index
+    final var durationBytes = 80;
+    // An entry in the index of waveform changes
+    final var waveformBytes = 4;
+
+    return (long) kinds.length * eventBytes + (long) playbackData.size() * playbackDataBytes + (long) durations.size() * durationBytes
+        + (long) waveformIndices.length * waveformBytes;
+  }
+
+  int size() {
+    return size;
+  }
+
+  byte getKind(int index) {
+    return kinds[index];
+  }
+
+  /**
+   * 再生オフセット (ナノ秒) を取得する。
+   */
+  long getOffset(int index) {
+    return offsets[index];
+  }
+
+  float getFrequency(int index) {
+    return frequencies[index];
+  }
+
+  float getVolume(int index) {
+    return volumes[index];
+  }
+
+  /**
+   * 再生時間を取得する。
+   *
+   * @return 再生時間が指定されていないイベントの場合は null
+   */
+  Duration getDuration(int index) {
+    return kinds[index] == TIMED_TONE ? durations.get(arguments[index]) : null;
+  }
+
+  /**
+   * 切り替える波形を取得する。
+   *
+   * @return 波形を切り替えるイベントでない場合は null
+   */
+  WaveformType getWaveform(int index) {
+    return kinds[index] == CHANGE_WAVEFORM ? WAVEFORMS[arguments[index]] : null;
+  }
+
+  /**
+   * 指定した番号のイベントの時点で使われている波形を取得する。指定したイベントが波形を切り替える場合はその波形となる。
+   *
+   * @return それまでに波形を切り替えるイベントがない場合は null
+   */
+  WaveformType getWaveformAt(int index) {
+    final var count = countWaveformsBefore(index + 1);
+
+    return count > 0 ? WAVEFORMS[arguments[waveformIndices[count - 1]]] : null;
+  }
+
+  PlaybackData getPlaybackData(int index) {
+    return playbackData.get(dataIndices[index]);
+  }
+
+  /**
+   * イベントが参照する演奏状態の、表における番号を取得する。
+   */
+  int getPlaybackDataIndex(int index) {
+    return dataIndices[index];
+  }
+
+  /**
+   * 演奏状態の表を取得する。
+   */
+  List<PlaybackData> getPlaybackDataTable() {
+    return playbackData;
+  }
+
+  /**
+   * 指定したオフセット (ナノ秒) 以降で最初に再生されるイベントの番号を取得する。
+   *
+   * @return 該当するイベントがない場合はイベントの数
+   */
+  int indexAt(long offset) {
+    var low = 0;
+    var high = size;
+
+    // Offsets are clamped to never decrease when added, so the first event at or after the offset can be searched
+    while (low < high) {
+      final var mid = (low + high) >>> 1;
+
+      if (offsets[mid] < offset) low = mid + 1;
+      else high = mid;
+    }
+
+    return low;
+  }
+}
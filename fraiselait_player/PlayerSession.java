@@ -1,25 +1,41 @@
+import dev.wycey.mido.fraiselait.builtins.WaveformType;
+
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.UnaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.LongUnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 class PlaybackState {
+  // Start time until playback is started for the first time
+  static final long NOT_STARTED = Long.MIN_VALUE;
+
   public final AtomicBoolean isPlaying = new AtomicBoolean(false);
-  private final AtomicReference<LocalDateTime> globalTimeOffset = new AtomicReference<>();
+  // Start time in nanoseconds of the playback clock
+  private final AtomicLong globalTimeOffset = new AtomicLong(NOT_STARTED);
 
-  public LocalDateTime getGlobalTimeOffset() {
+  public long getGlobalTimeOffset() {
     return globalTimeOffset.get();
   }
 
-  public void setGlobalTimeOffset(LocalDateTime value) {
+  public void setGlobalTimeOffset(long value) {
     globalTimeOffset.set(value);
   }
 
-  public void updateAndGetGlobalTimeOffset(UnaryOperator<LocalDateTime> updater) {
+  public void updateAndGetGlobalTimeOffset(LongUnaryOperator updater) {
     globalTimeOffset.updateAndGet(updater);
   }
 }
@@ -32,11 +48,37 @@ class PlaybackState {
 public class PlayerSession implements AutoCloseable {
   private final List<Score> scores;
   private final PlaybackExecutor executor;
+  private final AtomicInteger savedCommands = new AtomicInteger();
+
+  private volatile boolean minimizing = false;
+  private volatile boolean timedTones = false;
 
   public PlayerSession(List<Score> scores, List<PlaybackOutput> outputs) {
-    this.scores = scores;
+    this(scores, outputs, (PlayerSession) null);
+  }
+
+  public PlayerSession(List<Score> scores) {
+    this(scores, (List<PlaybackOutput>) null);
+  }
 
-    final var parts = scores.stream().map(PlaybackPart::new).toList();
+  /**
+   * 再読み込みした譜面で新しいセッションを作成する。
+   * 各パートの再生データは以前のセッションと比較され、変更されたコマンド以降のみが作成し直される。
+   *
+   * @param scores   再読み込みした譜面
+   * @param previous 以前のセッション (終了済みでもよい)
+   */
+  public PlayerSession(List<Score> scores, PlayerSession previous) {
+    this(scores, null, previous);
+  }
+
+  private PlayerSession(List<Score> scores, List<PlaybackOutput> outputs, PlayerSession previous) {
+    this(scores, outputs, ParallelLoader.loadAll(scores.size(), i -> compile(previous, i, scores.get(i))));
+  }
+
+  private PlayerSession(List<Score> scores, List<PlaybackOutput> outputs, List<PlaybackPart> parts) {
+    // Updated in place when the scores are replaced during playback
+    this.scores = new CopyOnWriteArrayList<>(scores);
 
     if (outputs != null) {
       if (scores.size() != outputs.size()) {
@@ -51,14 +93,142 @@ public class PlayerSession implements AutoCloseable {
     executor = new PlaybackExecutor(parts);
   }
 
-  public PlayerSession(List<Score> scores) {
-    this(scores, null);
+  /**
+   * 譜面ファイルから全パートを読み込み、セッションを作成する。
+   * 字句解析・構文解析・再生データの作成はパートごとに並列に行われるため、準備にかかる時間は最も大きなパートで決まる。
+   *
+   * @param file     譜面ファイル
+   * @param parts    パート数
+   * @param previous 以前のセッション (null の場合はすべてのパートを新たに作成する)
+   */
+  public static PlayerSession load(ScoreFile file, int parts, PlayerSession previous) {
+    final var scores = new Score[parts];
+    final var compiled = ParallelLoader.loadAll(parts, i -> {
+      scores[i] = file.load(ScoreFile.sectionNameOf(i, parts));
+
+      return compile(previous, i, scores[i]);
+    });
+
+    return new PlayerSession(Arrays.asList(scores), null, compiled);
+  }
+
+  /**
+   * 再生データを事前に作成せず、再生しながら譜面を逐次的に変換するセッションを作成する。
+   * 長時間ループする譜面でもメモリ使用量が譜面の長さに比例せず、変換の完了を待たずに再生を始められる。
+   * 譜面を差し替えた場合も、新しいパートは逐次的に変換される。
+   *
+   * @param scores 譜面
+   */
+  public static PlayerSession streaming(List<Score> scores) {
+    final var parts = scores.stream().map(score -> PlaybackPart.streaming(score, EnvelopeSampling.FIXED)).collect(Collectors.toList());
+
+    return new PlayerSession(scores, null, parts);
+  }
+
+  private static PlaybackPart compile(PlayerSession previous, int partIndex, Score score) {
+    final var previousParts = previous != null ? previous.executor.getParts() : List.<PlaybackPart>of();
+
+    if (partIndex >= previousParts.size()) return PlaybackPart.load(score, null, null, EnvelopeSampling.FIXED);
+
+    final var previousPart = previousParts.get(partIndex);
+
+    return recompile(previousPart, score, previousPart.getEnvelopeSampling());
+  }
+
+  // Compiles the score, reusing the data of the part up to the first changed command if the sampling is unchanged
+  private static PlaybackPart recompile(PlaybackPart previous, Score score, EnvelopeSampling sampling) {
+    if (previous.isStreaming()) return PlaybackPart.streaming(score, sampling);
+
+    final var previousScore = previous.getScore();
+    final var diff = previousScore == score ? ScoreDiff.unchanged(score) : ScoreDiff.between(previousScore, score);
+
+    return PlaybackPart.load(score, previous, diff, sampling);
   }
 
+  /**
+   * 譜面の一覧を取得する。
+   * 再生中に {@link #replaceScores(List)} で差し替えられた場合は、各パートが切り替わった時点で内容が更新される。
+   */
   public List<Score> getScores() {
     return scores;
   }
 
+  /**
+   * 再生を止めずに譜面を差し替える。
+   * 再生データの作成はパートごとに並列に行われ、呼び出したスレッドはその完了を待つ。再生中の場合は次の小節の区切りで各パートが新しい再生データに切り替わる。
+   * 再生中でない場合はすぐに差し替えられる。
+   *
+   * @param newScores 新しい譜面 (パート数は変更できない)
+   * @return すべてのパートが切り替わった時点で完了する
+   */
+  public CompletableFuture<Void> replaceScores(List<Score> newScores) {
+    if (newScores.size() != scores.size()) {
+      throw new IllegalArgumentException("Number of parts must match");
+    }
+
+    return replaceParts(newScores, null);
+  }
+
+  /**
+   * エンベロープのサンプリング方法を変更し、すべてのパートの再生データを作成し直す。
+   * 切り替えは {@link #replaceScores(List)} と同じく行われ、以降に差し替えられるパートにも同じサンプリング方法が使われる。
+   *
+   * @param sampling エンベロープのサンプリング方法
+   * @return すべてのパートが切り替わった時点で完了する
+   */
+  public CompletableFuture<Void> setEnvelopeSampling(EnvelopeSampling sampling) {
+    Objects.requireNonNull(sampling, "Sampling must not be null");
+
+    final var currentScores = executor.getParts().stream().map(PlaybackPart::getScore).collect(Collectors.toList());
+
+    return replaceParts(currentScores, sampling);
+  }
+
+  // Recompiles every part in parallel and swaps them in, keeping the sampling of each part if none is given
+  private CompletableFuture<Void> replaceParts(List<Score> newScores, EnvelopeSampling sampling) {
+    final var currentParts = executor.getParts();
+    final var newParts = ParallelLoader.loadAll(newScores.size(), i -> {
+      final var current = currentParts.get(i);
+      final var part = recompile(current, newScores.get(i), sampling != null ? sampling : current.getEnvelopeSampling());
+
+      if (current.hasOutput()) part.setOutput(current.getOutput());
+      if (minimizing) savedCommands.addAndGet(part.minimize(timedTones));
+
+      return part;
+    });
+
+    return executor.swap(newParts, i -> scores.set(i, newScores.get(i)));
+  }
+
+  /**
+   * 出力先に送るコマンドを最小化する。
+   * 冗長な tone・noTone・波形の切り替えを取り除き、timedTones が true の場合は tone と続く noTone を再生時間付きの tone にまとめる。
+   * 以降に {@link #replaceScores(List)} で差し替えられたパートも最小化される。再生中に呼び出した場合は、次の繰り返しから反映される。
+   *
+   * @param timedTones すべての出力先が再生時間付きの tone に対応しているかどうか
+   * @return 現在のパートで削減されたコマンドの数
+   */
+  public int minimizeCommands(boolean timedTones) {
+    this.timedTones = timedTones;
+    minimizing = true;
+
+    savedCommands.set(0);
+
+    for (final var part : executor.getParts()) {
+      savedCommands.addAndGet(part.minimize(timedTones));
+    }
+
+    return savedCommands.get();
+  }
+
+  /**
+   * {@link #minimizeCommands(boolean)} によって削減されたコマンドの数を取得する。
+   * 差し替えられたパートで削減された分も含まれる。
+   */
+  public int getSavedCommandCount() {
+    return savedCommands.get();
+  }
+
   private PlaybackData getPlaybackDataFor(int partIndex) {
     return executor.getParts().get(partIndex).getPlaybackData();
   }
@@ -87,6 +257,46 @@ public class PlayerSession implements AutoCloseable {
     return executor.getParts().get(partIndex).getActualVolume();
   }
 
+  /**
+   * 再生に使う時計を変更する。
+   *
+   * @param clock 時計 (既定では {@link PlaybackClock#SYSTEM})
+   * @throws IllegalStateException 再生中の場合
+   */
+  public void setClock(PlaybackClock clock) {
+    executor.setClock(Objects.requireNonNull(clock, "Clock must not be null"));
+  }
+
+  public PlaybackClock getClock() {
+    return executor.getClock();
+  }
+
+  /**
+   * 次のイベントの時刻まで待機する方法を変更する。再生中でも変更でき、次の待機から有効になる。
+   *
+   * @param strategy 待機する方法 (既定では {@link WaitStrategy#park()} で作成したもの)
+   */
+  public void setWaitStrategy(WaitStrategy strategy) {
+    executor.setWaitStrategy(Objects.requireNonNull(strategy, "Wait strategy must not be null"));
+  }
+
+  public WaitStrategy getWaitStrategy() {
+    return executor.getWaitStrategy();
+  }
+
+  /**
+   * 再生時にイベントを出力するスレッドの構成を変更する。再生中の場合は、次に開始したときから有効になる。
+   *
+   * @param mode スレッドの構成 (既定では {@link SchedulerMode#PER_PART})
+   */
+  public void setSchedulerMode(SchedulerMode mode) {
+    executor.setSchedulerMode(Objects.requireNonNull(mode, "Scheduler mode must not be null"));
+  }
+
+  public SchedulerMode getSchedulerMode() {
+    return executor.getSchedulerMode();
+  }
+
   /**
    * 音楽再生を開始する
    *
@@ -107,6 +317,66 @@ public class PlayerSession implements AutoCloseable {
     return start(null);
   }
 
+  /**
+   * 次に再生を開始する位置を指定する。再生中の場合は、次に開始したときから有効になる。
+   *
+   * @param position 曲の先頭からの時間
+   */
+  public void seek(Duration position) {
+    executor.seek(position, null);
+  }
+
+  /**
+   * 次に再生を開始する位置を、最初のパートのコマンドで指定する。
+   *
+   * @param commandIndex 最初のパートの譜面のコマンド番号
+   */
+  public void seekToCommand(int commandIndex) {
+    seekToCommand(0, commandIndex);
+  }
+
+  /**
+   * 次に再生を開始する位置を、パートのコマンドで指定する。
+   *
+   * @param partIndex    パート番号
+   * @param commandIndex パートの譜面のコマンド番号
+   */
+  public void seekToCommand(int partIndex, int commandIndex) {
+    executor.seek(Duration.ofNanos(executor.getParts().get(partIndex).offsetOfCommand(commandIndex)), null);
+  }
+
+  /**
+   * 指定した範囲だけを一度再生する。ループするパートでも繰り返さない。
+   *
+   * @param from 再生を開始する、曲の先頭からの時間
+   * @param to   再生を終了する、曲の先頭からの時間
+   * @throws IllegalStateException 再生中の場合
+   */
+  public CompletableFuture<Void> playRange(Duration from, Duration to) {
+    if (from.isNegative() || from.compareTo(to) >= 0) {
+      throw new IllegalArgumentException("Invalid range: " + from + " to " + to);
+    }
+
+    try {
+      return executor.playRange(from, to);
+    } catch (ExecutionException e) {
+      throw new CompletionException(e.getCause());
+    }
+  }
+
+  /**
+   * 実時間を待たずに、全パートのイベントを時刻順にすべて出力する。呼び出したスレッドで出力し、完了するまで戻らない。
+   * 各コマンドの前に、出力先の {@link PlaybackOutput#setPosition(Duration)} で仮想的な再生位置が通知される。
+   * ループする譜面も一度だけ出力する。{@link #seek(Duration)} で指定した位置は、{@link #start()} と同じく反映される。
+   *
+   * @param outputs 各パートの出力先 (パートに設定された出力先は変更されない)
+   * @return 出力した範囲の長さ
+   * @throws IllegalStateException 再生中の場合
+   */
+  public Duration render(List<PlaybackOutput> outputs) {
+    return executor.render(outputs);
+  }
+
   /**
    * 音楽再生を少し早める
    * <p>
@@ -170,9 +440,38 @@ public class PlayerSession implements AutoCloseable {
     executor.close();
   }
 
+  /**
+   * 再生中のパートの差し替え要求
+   */
+  private static final class PartsSwap {
+    private final List<PlaybackPart> parts;
+    // Offset of the bar boundary to swap at, in nanoseconds
+    private final long swapTime;
+    private final IntConsumer onSwapped;
+    private final AtomicIntegerArray claimed;
+    private final AtomicInteger remaining;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+    private PartsSwap(List<PlaybackPart> parts, long swapTime, IntConsumer onSwapped) {
+      this.parts = parts;
+      this.swapTime = swapTime;
+      this.onSwapped = onSwapped;
+      this.claimed = new AtomicIntegerArray(parts.size());
+      this.remaining = new AtomicInteger(parts.size());
+    }
+  }
+
   private static class PlaybackExecutor implements AutoCloseable {
+    // Swaps closer than this to the next bar are postponed by a bar, so that every part can see them in time
+    private static final Duration SWAP_LEAD_TIME = Duration.ofMillis(50);
+    // Time before each event at which waiting for swaps hands over to the wait strategy, as monitor waits may overshoot by this much
+    private static final long SPIN_TIME_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+
     private final List<PlaybackPart> parts;
-    private final Duration maxDuration;
+    private final AtomicReference<PartsSwap> pendingSwap = new AtomicReference<>();
+    private final Object swapSignal = new Object();
+    // Computed on first use, as streaming parts have to read through their scores to know it
+    private volatile Duration maxDuration;
     private final CyclicBarrier startBarrier;
     private final AtomicInteger threadId = new AtomicInteger(0);
     private final PlaybackState state = new PlaybackState();
@@ -180,16 +479,25 @@ public class PlayerSession implements AutoCloseable {
     private ExecutorService executorService;
     private CompletableFuture<Void> playbackFuture = new CompletableFuture<>();
 
-    public PlaybackExecutor(List<PlaybackPart> parts) {
-      this.parts = parts;
+    // Range of the next playback in nanoseconds, reset once it starts
+    private volatile long startOffset = 0;
+    private volatile long endOffset = Long.MAX_VALUE;
 
-      maxDuration = parts
-          .stream()
-          .map(PlaybackPart::getTotalDuration)
-          .max(Duration::compareTo)
-          .orElse(Duration.ZERO);
+    // Offset the next iteration starts from, consumed by the start barrier
+    private volatile long iterationOffset = 0;
+
+    private volatile SchedulerMode schedulerMode = SchedulerMode.PER_PART;
+    private volatile PlaybackClock clock = PlaybackClock.SYSTEM;
+    private volatile WaitStrategy waitStrategy = WaitStrategy.park();
+
+    public PlaybackExecutor(List<PlaybackPart> parts) {
+      this.parts = new CopyOnWriteArrayList<>(parts);
 
-      startBarrier = new CyclicBarrier(parts.size());
+      // Sets the start time before any part is released, so that none of them sees a stale one
+      startBarrier = new CyclicBarrier(parts.size(), () -> {
+        state.setGlobalTimeOffset(clock.nanoTime() - iterationOffset);
+        iterationOffset = 0;
+      });
 
       initializePlaybackResources();
     }
@@ -212,71 +520,244 @@ public class PlayerSession implements AutoCloseable {
       playbackFuture = new CompletableFuture<>();
     }
 
+    private static Duration getMaxDuration(List<PlaybackPart> parts) {
+      return parts
+          .stream()
+          .map(PlaybackPart::getTotalDuration)
+          .max(Duration::compareTo)
+          .orElse(Duration.ZERO);
+    }
+
     public List<PlaybackPart> getParts() {
       return parts;
     }
 
-    private void accurateSleep(LocalDateTime targetTime) throws InterruptedException {
-      if (LocalDateTime.now().isAfter(targetTime)) {
-        return;
+    public SchedulerMode getSchedulerMode() {
+      return schedulerMode;
+    }
+
+    public void setSchedulerMode(SchedulerMode schedulerMode) {
+      this.schedulerMode = schedulerMode;
+    }
+
+    public PlaybackClock getClock() {
+      return clock;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+      return waitStrategy;
+    }
+
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+      this.waitStrategy = waitStrategy;
+    }
+
+    public synchronized void setClock(PlaybackClock clock) {
+      if (state.isPlaying.get()) {
+        throw new IllegalStateException("Clock cannot be changed during playback");
+      }
+
+      this.clock = clock;
+    }
+
+    /**
+     * 各パートを次の小節の区切りで新しいパートに切り替える。
+     * 小節の区切りは、最初のパートの対応表から求める。
+     *
+     * @param newParts  新しいパート
+     * @param onSwapped パートが切り替わる度に、パート番号を引数として呼び出される
+     */
+    public CompletableFuture<Void> swap(List<PlaybackPart> newParts, IntConsumer onSwapped) {
+      final var swap = new PartsSwap(newParts, getNextBarBoundary(), onSwapped);
+      final var superseded = pendingSwap.getAndSet(swap);
+
+      if (superseded != null) superseded.future.cancel(false);
+
+      synchronized (swapSignal) {
+        swapSignal.notifyAll();
+      }
+
+      // Playback may have finished just before the swap was registered
+      if (!state.isPlaying.get()) finishSwap();
+
+      return swap.future;
+    }
+
+    // Offset of the next bar boundary in nanoseconds
+    private long getNextBarBoundary() {
+      final var startTime = state.getGlobalTimeOffset();
+
+      if (!state.isPlaying.get() || startTime == PlaybackState.NOT_STARTED) return 0;
+
+      final var position = clock.nanoTime() - startTime;
+      final var tempoMap = parts.get(0).getTempoMap();
+
+      if (tempoMap != null) {
+        final var boundary = tempoMap.nextBarBoundary(Math.max(0, position));
+
+        return boundary - position < SWAP_LEAD_TIME.toNanos() ? tempoMap.nextBarBoundary(boundary + 1) : boundary;
       }
 
-      final var sleepTime = Duration.between(LocalDateTime.now(), targetTime).minus(Duration.ofMillis(16));
+      // Streaming parts only know their current BPM
+      final var bar = Math.round(Notes.toDurationMillis(parts.get(0).getPlaybackData().getBPM(), 1) * 1_000_000);
+
+      var boundary = Math.max(0, (position + bar - 1) / bar * bar);
+
+      if (boundary - position < SWAP_LEAD_TIME.toNanos()) boundary += bar;
+
+      return boundary;
+    }
+
+    // Switches the part to the pending swap, if it has not been switched yet
+    private boolean claimSwap(PartsSwap swap, int index) {
+      if (!swap.claimed.compareAndSet(index, 0, 1)) return false;
 
-      if (!sleepTime.isNegative()) {
-        Thread.sleep(sleepTime.toMillis());
+      parts.set(index, swap.parts.get(index));
+      swap.onSwapped.accept(index);
+
+      if (swap.remaining.decrementAndGet() == 0) {
+        pendingSwap.compareAndSet(swap, null);
+        maxDuration = null;
+
+        swap.future.complete(null);
       }
 
-      while (LocalDateTime.now().isBefore(targetTime)) {
-        Thread.onSpinWait();
+      return true;
+    }
+
+    // Applies the pending swap to the parts that are no longer played
+    private void finishSwap() {
+      final var swap = pendingSwap.get();
+
+      if (swap == null) return;
+
+      for (int i = 0; i < parts.size(); i++) {
+        claimSwap(swap, i);
       }
     }
 
-    private void playOnce(PlaybackPart part) throws InterruptedException {
+    // Waits until the target time in nanoseconds of the clock
+    private void accurateSleep(long targetTime) throws InterruptedException {
+      waitStrategy.awaitUntil(clock, targetTime);
+    }
+
+    // Waits until shortly before the target time, returning false early if a swap for the data is requested
+    private boolean awaitUnlessSwapped(long targetTime, long offset, int index) throws InterruptedException {
+      synchronized (swapSignal) {
+        while (true) {
+          final var swap = pendingSwap.get();
+
+          if (swap != null && offset >= swap.swapTime && swap.claimed.get(index) == 0) return false;
+
+          final var waitTime = targetTime - clock.nanoTime() - SPIN_TIME_NANOS;
+
+          if (waitTime <= 0) return true;
+
+          swapSignal.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitTime)));
+        }
+      }
+    }
+
+    // Plays the part from the offset until the end offset, and returns whether it loops
+    private boolean playOnce(int index, long from, long to) throws InterruptedException {
       final var startTime = state.getGlobalTimeOffset();
+
+      var part = parts.get(index);
+      var cursor = from > 0 ? part.cursorAt(from) : part.cursor();
+
       final var output = part.getOutput();
 
-      for (var it = part.getSoundData().iterator(); it.hasNext(); ) {
-        final var soundData = it.next();
+      // Waveform in effect at the start or swap point, sent along with the first event
+      WaveformType restoredWaveform = from > 0 ? cursor.getCurrentWaveform() : null;
+
+      if (from > 0 && cursor.hasEvent()) part.setPlaybackData(cursor.getPlaybackData());
+
+      while (cursor.hasEvent()) {
+        if (cursor.getOffset() >= to) {
+          accurateSleep(startTime + to);
+
+          output.noTone();
+
+          return false;
+        }
 
         if (Thread.interrupted()) throw new InterruptedException();
 
-        final var targetTime = startTime.plus(soundData.offset);
+        final var swap = pendingSwap.get();
+
+        // Continue from the swap point of the new part, as both share the start time
+        if (swap != null && cursor.getOffset() >= swap.swapTime && claimSwap(swap, index)) {
+          part = parts.get(index);
+          cursor = part.cursorAt(swap.swapTime);
+
+          restoredWaveform = cursor.getCurrentWaveform();
+
+          if (!cursor.hasEvent()) {
+            if (cursor.isLoop()) accurateSleep(startTime + Math.min(to, cursor.getTotalDuration().toNanos()));
+
+            break;
+          }
+
+          // The new part may have no event left before the end of the range
+          if (cursor.getOffset() >= to) continue;
+        }
+
+        final var offset = cursor.getOffset();
+        final var targetTime = startTime + offset;
+
+        if (!awaitUnlessSwapped(targetTime, offset, index)) continue;
 
         accurateSleep(targetTime);
 
-        if (soundData.waveformType != null) {
-          output.changeWaveform(soundData.waveformType);
+        final var kind = cursor.getKind();
+
+        if (kind == PlaybackTimeline.CHANGE_WAVEFORM) {
+          output.changeWaveform(cursor.getWaveform());
+        } else if (restoredWaveform != null) {
+          output.changeWaveform(restoredWaveform);
         }
 
-        if (soundData.frequency != null) {
-          if (soundData.duration != null) {
-            output.tone(soundData.frequency, soundData.actualVolume, soundData.duration);
+        restoredWaveform = null;
+
+        if (kind == PlaybackTimeline.TONE || kind == PlaybackTimeline.TIMED_TONE) {
+          if (kind == PlaybackTimeline.TIMED_TONE) {
+            output.tone(cursor.getFrequency(), cursor.getVolume(), cursor.getDuration());
           } else {
-            output.tone(soundData.frequency, soundData.actualVolume);
+            output.tone(cursor.getFrequency(), cursor.getVolume());
           }
 
-          if (!it.hasNext() && part.isLoop())
-            accurateSleep(startTime.plus(part.getTotalDuration())); // wait until the end of the loop
+          if (cursor.isLast() && cursor.isLoop())
+            accurateSleep(startTime + cursor.getTotalDuration().toNanos()); // wait until the end of the loop
         } else {
           output.noTone();
         }
 
-        part.setPlaybackData(soundData.playbackData);
+        part.setPlaybackData(cursor.getPlaybackData());
+
+        cursor.advance();
       }
+
+      return cursor.isLoop();
     }
 
-    private void playPart(PlaybackPart part) {
-      final var output = part.getOutput();
+    private void playPart(int index, long from, long to) {
+      final var output = parts.get(index).getOutput();
 
       try {
+        var loop = false;
+        var offset = from;
+
         do {
-          if (startBarrier.await() == 0) {
-            state.setGlobalTimeOffset(LocalDateTime.now());
-          }
+          startBarrier.await();
+
+          // The beginning of a loop is also a bar boundary
+          final var swap = pendingSwap.get();
+
+          if (swap != null) claimSwap(swap, index);
 
-          playOnce(part);
-        } while (part.isLoop() && state.isPlaying.get());
+          loop = playOnce(index, offset, to);
+          offset = 0;
+        } while (loop && to == Long.MAX_VALUE && state.isPlaying.get());
       } catch (InterruptedException | BrokenBarrierException e) {
         Thread.currentThread().interrupt();
 
@@ -290,7 +771,294 @@ public class PlayerSession implements AutoCloseable {
       }
     }
 
-    public CompletableFuture<Void> play(List<PlaybackOutput> outputs) throws ExecutionException {
+    // Waits until shortly before the target time, returning false early if the pending swap changes
+    private boolean awaitUnlessSwapChanged(long targetTime, PartsSwap current) throws InterruptedException {
+      synchronized (swapSignal) {
+        while (pendingSwap.get() == current) {
+          final var waitTime = targetTime - clock.nanoTime() - SPIN_TIME_NANOS;
+
+          if (waitTime <= 0) return true;
+
+          swapSignal.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitTime)));
+        }
+
+        return false;
+      }
+    }
+
+    // Plays every part from a single thread, waking once for all the events due at the same offset
+    private void playShared(long from, long to) {
+      final var scheduled = new ArrayList<ScheduledPart>(parts.size());
+      final var queuedOutputs = new ArrayList<AsyncOutput>(parts.size());
+
+      for (int i = 0; i < parts.size(); i++) {
+        final var output = parts.get(i).getOutput();
+
+        // Each output is written by its own thread, so that a slow device does not delay the events of the other parts
+        if (output instanceof AsyncOutput) {
+          scheduled.add(new ScheduledPart(i, output));
+        } else {
+          final var queued = new AsyncOutput(output);
+
+          queuedOutputs.add(queued);
+          scheduled.add(new ScheduledPart(i, queued));
+        }
+      }
+
+      try {
+        var loop = false;
+        var offset = from;
+
+        do {
+          state.setGlobalTimeOffset(clock.nanoTime() - offset);
+
+          // The beginning of a loop is also a bar boundary
+          final var swap = pendingSwap.get();
+
+          if (swap != null) {
+            for (int i = 0; i < parts.size(); i++) {
+              claimSwap(swap, i);
+            }
+          }
+
+          loop = playSharedOnce(scheduled, offset, to);
+          offset = 0;
+        } while (loop && to == Long.MAX_VALUE && state.isPlaying.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+
+        scheduled.forEach(part -> part.output.noTone());
+
+        throw new CompletionException(e);
+      } catch (Exception e) {
+        scheduled.forEach(part -> part.output.noTone());
+
+        throw new CompletionException(e);
+      } finally {
+        for (final var output : queuedOutputs) {
+          try {
+            output.close();
+          } catch (TimeoutException | CompletionException e) {
+            // The writer still writes the remaining commands and finishes by itself
+          }
+        }
+      }
+    }
+
+    // Plays the looping parts once in the order of their events, and returns whether any of them loops
+    private boolean playSharedOnce(List<ScheduledPart> scheduled, long from, long to) throws InterruptedException {
+      final var startTime = state.getGlobalTimeOffset();
+      final var queue = new PriorityQueue<ScheduledPart>(scheduled.size(), Comparator.comparingLong(part -> part.dueOffset));
+
+      for (final var part : scheduled) {
+        if (part.start(from, to)) queue.add(part);
+      }
+
+      while (!queue.isEmpty()) {
+        if (Thread.interrupted()) throw new InterruptedException();
+
+        final var swap = pendingSwap.get();
+
+        // Parts waiting beyond the swap point continue from there in their new parts
+        if (swap != null) {
+          for (final var part : scheduled) {
+            if (!part.active || part.cursor.getOffset() < swap.swapTime || swap.claimed.get(part.index) != 0) continue;
+
+            queue.remove(part);
+            part.swapIfDue(swap, to);
+
+            if (part.active) queue.add(part);
+          }
+
+          if (queue.isEmpty()) break;
+        }
+
+        final var due = queue.peek().dueOffset;
+        final var targetTime = startTime + due;
+
+        if (!awaitUnlessSwapChanged(targetTime, swap)) continue;
+
+        accurateSleep(targetTime);
+
+        while (!queue.isEmpty() && queue.peek().dueOffset <= due) {
+          final var part = queue.poll();
+
+          if (swap == null || !part.swapIfDue(swap, to)) part.playEvent(to);
+
+          if (part.active) queue.add(part);
+        }
+      }
+
+      var loopEnd = -1L;
+      var loop = false;
+
+      for (final var part : scheduled) {
+        loopEnd = Math.max(loopEnd, part.loopEnd);
+        loop |= part.loop;
+      }
+
+      // wait until the end of the loop
+      if (loopEnd >= 0) accurateSleep(startTime + loopEnd);
+
+      return loop;
+    }
+
+    /**
+     * 単一のスレッドで再生する場合の、各パートの再生位置
+     */
+    private final class ScheduledPart {
+      private final int index;
+      private final PlaybackOutput output;
+
+      private PlaybackPart part;
+      private PlaybackCursor cursor;
+      // Waveform in effect at the start or swap point, sent along with the first event
+      private WaveformType restoredWaveform;
+      // Offset of the next event, or of the end of the range if that comes first
+      private long dueOffset;
+      private boolean active = false;
+      // Whether the part loops once it has finished, as returned by playOnce
+      private boolean loop = true;
+      // Offset to wait for before looping, or -1 if none
+      private long loopEnd = -1;
+
+      private ScheduledPart(int index, PlaybackOutput output) {
+        this.index = index;
+        this.output = output;
+      }
+
+      // Rewinds to the offset if the part is still played, and returns whether it has events to play
+      private boolean start(long from, long to) {
+        active = false;
+        loopEnd = -1;
+
+        if (!loop) return false;
+
+        part = parts.get(index);
+        cursor = from > 0 ? part.cursorAt(from) : part.cursor();
+        restoredWaveform = from > 0 ? cursor.getCurrentWaveform() : null;
+
+        if (from > 0 && cursor.hasEvent()) part.setPlaybackData(cursor.getPlaybackData());
+
+        return update(to);
+      }
+
+      // Switches to the new part if the next event is at or after the swap point
+      private boolean swapIfDue(PartsSwap swap, long to) {
+        if (cursor.getOffset() < swap.swapTime || !claimSwap(swap, index)) return false;
+
+        part = parts.get(index);
+        cursor = part.cursorAt(swap.swapTime);
+        restoredWaveform = cursor.getCurrentWaveform();
+
+        update(to);
+
+        return true;
+      }
+
+      private void playEvent(long to) {
+        if (cursor.getOffset() >= to) {
+          output.noTone();
+
+          active = false;
+          loop = false;
+
+          return;
+        }
+
+        final var kind = cursor.getKind();
+
+        if (kind == PlaybackTimeline.CHANGE_WAVEFORM) {
+          output.changeWaveform(cursor.getWaveform());
+        } else if (restoredWaveform != null) {
+          output.changeWaveform(restoredWaveform);
+        }
+
+        restoredWaveform = null;
+
+        if (kind == PlaybackTimeline.TONE || kind == PlaybackTimeline.TIMED_TONE) {
+          if (kind == PlaybackTimeline.TIMED_TONE) {
+            output.tone(cursor.getFrequency(), cursor.getVolume(), cursor.getDuration());
+          } else {
+            output.tone(cursor.getFrequency(), cursor.getVolume());
+          }
+
+          if (cursor.isLast() && cursor.isLoop()) loopEnd = cursor.getTotalDuration().toNanos();
+        } else {
+          output.noTone();
+        }
+
+        part.setPlaybackData(cursor.getPlaybackData());
+
+        cursor.advance();
+
+        update(to);
+      }
+
+      private boolean update(long to) {
+        active = cursor.hasEvent();
+
+        if (active) {
+          dueOffset = Math.min(cursor.getOffset(), to);
+        } else {
+          loop = cursor.isLoop();
+
+          if (loop) loopEnd = Math.max(loopEnd, cursor.getTotalDuration().toNanos());
+        }
+
+        return active;
+      }
+    }
+
+    // Dispatches every event in the order of their offsets without waiting, advancing a virtual position instead
+    public synchronized Duration render(List<PlaybackOutput> outputs) {
+      if (parts.size() != outputs.size()) {
+        throw new IllegalArgumentException("Number of parts and outputs must match");
+      }
+
+      if (state.isPlaying.get()) {
+        throw new IllegalStateException("Cannot render during playback");
+      }
+
+      final var from = startOffset;
+      final var to = endOffset;
+
+      startOffset = 0;
+      endOffset = Long.MAX_VALUE;
+
+      final var queue = new PriorityQueue<ScheduledPart>(parts.size(), Comparator.comparingLong(part -> part.dueOffset));
+      final var scheduled = new ArrayList<ScheduledPart>(parts.size());
+
+      for (int i = 0; i < parts.size(); i++) {
+        final var part = new ScheduledPart(i, outputs.get(i));
+
+        scheduled.add(part);
+
+        if (part.start(from, to)) queue.add(part);
+      }
+
+      var position = from;
+
+      while (!queue.isEmpty()) {
+        final var part = queue.poll();
+
+        // Events earlier than the position are played late, as in real time
+        position = Math.max(position, part.dueOffset);
+
+        part.output.setPosition(Duration.ofNanos(position));
+        part.playEvent(to);
+
+        if (part.active) queue.add(part);
+      }
+
+      for (final var part : scheduled) {
+        position = Math.max(position, part.loopEnd);
+      }
+
+      return Duration.ofNanos(position - from);
+    }
+
+    public synchronized CompletableFuture<Void> play(List<PlaybackOutput> outputs) throws ExecutionException {
       if (state.isPlaying.compareAndSet(false, true)) {
         if (outputs != null) {
           if (parts.size() != outputs.size()) {
@@ -312,12 +1080,23 @@ public class PlayerSession implements AutoCloseable {
           initializePlaybackResources();
         }
 
-        CompletableFuture.allOf(parts
-                .stream()
-                .map(part -> CompletableFuture.runAsync(() -> playPart(part), executorService))
-                .toArray(CompletableFuture[]::new))
+        final var from = startOffset;
+        final var to = endOffset;
+
+        startOffset = 0;
+        endOffset = Long.MAX_VALUE;
+        iterationOffset = from;
+
+        final CompletableFuture<?>[] tasks = schedulerMode == SchedulerMode.SHARED
+            ? new CompletableFuture<?>[]{CompletableFuture.runAsync(() -> playShared(from, to), executorService)}
+            : IntStream.range(0, parts.size())
+                .mapToObj(index -> CompletableFuture.runAsync(() -> playPart(index, from, to), executorService))
+                .toArray(CompletableFuture<?>[]::new);
+
+        CompletableFuture.allOf(tasks)
             .thenRun(() -> {
               state.isPlaying.set(false);
+              finishSwap();
               playbackFuture.complete(null);
             })
             .exceptionally(t -> {
@@ -338,12 +1117,44 @@ public class PlayerSession implements AutoCloseable {
       return play(null);
     }
 
+    // Checked under the lock, so that the range is not left queued for an unrelated start
+    public synchronized CompletableFuture<Void> playRange(Duration from, Duration to) throws ExecutionException {
+      if (state.isPlaying.get()) {
+        throw new IllegalStateException("Cannot play a range during playback");
+      }
+
+      seek(from, to);
+
+      return play(null);
+    }
+
+    /**
+     * 次の再生の範囲を指定する。
+     *
+     * @param to 再生を終了する位置。null の場合は最後まで再生する
+     */
+    public void seek(Duration from, Duration to) {
+      if (from.isNegative()) {
+        throw new IllegalArgumentException("Position must not be negative");
+      }
+
+      startOffset = from.toNanos();
+      endOffset = to != null ? to.toNanos() : Long.MAX_VALUE;
+    }
+
     public void skip(Duration duration) {
-      state.updateAndGetGlobalTimeOffset(time -> time.minus(duration));
+      final var nanos = duration.toNanos();
+
+      state.updateAndGetGlobalTimeOffset(time -> time != PlaybackState.NOT_STARTED ? time - nanos : time);
     }
 
     public LocalDateTime getStartTime() {
-      return state.getGlobalTimeOffset();
+      final var startTime = state.getGlobalTimeOffset();
+
+      if (startTime == PlaybackState.NOT_STARTED) return null;
+
+      // Only converted to wall-clock time here, as the clock has no relation to it
+      return LocalDateTime.now().minusNanos(clock.nanoTime() - startTime);
     }
 
     public boolean isPlaying() {
@@ -354,12 +1165,21 @@ public class PlayerSession implements AutoCloseable {
       if (!state.isPlaying.get())
         return Duration.ZERO;
 
-      final var now = LocalDateTime.now();
       final var startTime = state.getGlobalTimeOffset();
 
-      return Duration.between(startTime, now).compareTo(maxDuration) > 0
-          ? maxDuration
-          : Duration.between(startTime, now);
+      if (startTime == PlaybackState.NOT_STARTED) return Duration.ZERO;
+
+      final var position = Duration.ofNanos(clock.nanoTime() - startTime);
+
+      var maxDuration = this.maxDuration;
+
+      if (maxDuration == null) {
+        maxDuration = getMaxDuration(parts);
+
+        this.maxDuration = maxDuration;
+      }
+
+      return position.compareTo(maxDuration) > 0 ? maxDuration : position;
     }
 
     public synchronized void stop() {
@@ -379,6 +1199,8 @@ public class PlayerSession implements AutoCloseable {
           throw new CompletionException(e);
         }
 
+        finishSwap();
+
         if (!playbackFuture.isDone())
           playbackFuture.completeExceptionally(new CancellationException("Playback stopped"));
       }
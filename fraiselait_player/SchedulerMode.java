@@ -0,0 +1,16 @@
+/**
+ * 再生時にイベントを出力するスレッドの構成。
+ */
+public enum SchedulerMode {
+  /**
+   * パートごとにスレッドを作成し、各スレッドが自分のパートの次のイベントまで待機する
+   */
+  PER_PART,
+  /**
+   * 1つのスレッドが全パートの次のイベントを時刻順に管理し、同じ時刻のイベントをまとめて出力する。
+   * パート数が増えても待機するスレッドは1つのため、CPU 使用量が増えない。
+   * 出力は再生中のみ出力先ごとの {@link AsyncOutput} を通して行うため、ある出力先の書き込みが遅れても他のパートのイベントは遅れない。
+   * 出力先がすでに {@link AsyncOutput} の場合はそのまま使う
+   */
+  SHARED
+}
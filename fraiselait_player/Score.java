@@ -1,14 +1,20 @@
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * 再生用の譜面データを表すクラス。ファクトリメソッドを通じて作成される。
  */
 public class Score {
+  // Sections with at least this many lines are lexed in parallel
+  private static final int PARALLEL_LEXING_LINES = 65536;
+
   private final float offset;
   private final float startingBPM;
   private final int startingMeasure;
@@ -17,7 +23,10 @@ public class Score {
 
   private final List<Oscillator> oscillators;
 
-  private Score(float startingBPM, int startingMeasure, float offset, double baseA4Frequency, List<ScoreCommand> commands, List<Oscillator> oscillators) {
+  // Key of the on-disk cache entry, or null if the score was not loaded through the cache
+  private String cacheKey;
+
+  Score(float startingBPM, int startingMeasure, float offset, double baseA4Frequency, List<ScoreCommand> commands, List<Oscillator> oscillators) {
     this.startingBPM = startingBPM;
     this.startingMeasure = startingMeasure;
     this.offset = offset;
@@ -35,21 +44,75 @@ public class Score {
   public static Score loadFromPath(Path filePath, String prefix) throws IOException {
     if (!Files.isReadable(filePath)) throw new IllegalArgumentException();
 
-    final var content = Files
-        .readAllLines(filePath)
-        .stream()
-        .filter(s -> !s.isEmpty()) // Skip empty lines
-        .dropWhile(s -> !s.equals(prefix))
-        .takeWhile(s -> !s.equals("end"))
-        .skip(1) // skip first prefix line
-        .collect(Collectors.joining("\n"));
+    final var cache = ScoreCache.getDefault();
+
+    // Hash the section while streaming it, so that the lines are not held
+    final var keyBuilder = new ScoreCache.KeyBuilder();
+    final var isEmpty = readSection(filePath, prefix, section -> {
+      final var lines = section.iterator();
+      final var empty = !lines.hasNext();
+
+      lines.forEachRemaining(keyBuilder::add);
+
+      return empty;
+    });
 
-    if (content.isEmpty()) throw new IllegalArgumentException();
+    if (isEmpty) throw new IllegalArgumentException();
 
-    final var lexer = new ScoreLexer(content);
-    final var tokens = lexer.tokenize();
+    final var key = keyBuilder.build();
+    final var cached = cache.readScore(key);
+
+    if (cached != null) return cached;
+
+    // Stream the section again into the parser, hashing it again in case the file changed in between
+    final var parsedKeyBuilder = new ScoreCache.KeyBuilder();
+    final var score = readSection(filePath, prefix, section -> parse(section.peek(parsedKeyBuilder::add).iterator()));
+
+    if (parsedKeyBuilder.build().equals(key)) cache.storeScore(key, score);
+
+    return score;
+  }
 
-    final var parser = new ScoreParser(tokens);
+  // Streams the lines of the section in the file, without its header and "end" lines
+  private static <T> T readSection(Path filePath, String prefix, Function<Stream<String>, T> reader) throws IOException {
+    try (final var lines = Files.lines(filePath)) {
+      return reader.apply(
+          lines
+              .filter(s -> !s.isEmpty()) // Skip empty lines
+              .dropWhile(s -> !s.equals(prefix))
+              .takeWhile(s -> !s.equals("end"))
+              .skip(1) // skip first prefix line
+      );
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * セクションの内容 (見出し行と "end" 行を除いたもの) から譜面データを作成する。
+   * 字句解析と構文解析は行単位で逐次的に行われる。
+   *
+   * @param content 譜面データの各行
+   */
+  static Score parse(Iterator<? extends CharSequence> content) {
+    if (!content.hasNext()) throw new IllegalArgumentException();
+
+    return parse(new ScoreParser(new ScoreLexer(content)));
+  }
+
+  /**
+   * セクションの内容から譜面データを作成する。
+   * 行数の多いセクションは、構文解析の前に行を分割して並列に字句解析する。
+   *
+   * @param content 譜面データの各行
+   */
+  static Score parse(List<? extends CharSequence> content) {
+    if (content.size() < PARALLEL_LEXING_LINES) return parse(content.iterator());
+
+    return parse(new ScoreParser(ScoreLexer.tokenizeParallel(content)));
+  }
+
+  private static Score parse(ScoreParser parser) {
     final var commands = parser.parse();
 
     final var header = parser.getHeader();
@@ -93,6 +156,37 @@ public class Score {
     return new ArrayList<>(commands);
   }
 
+  public int getCommandCount() {
+    return commands.size();
+  }
+
+  /**
+   * 以前の譜面と一致するコマンドを、以前のインスタンスで置き換える。
+   * 再読み込みの際に、変更されていないコマンドを共有するために使用する。
+   *
+   * @param previous 以前の譜面
+   * @param diff     以前の譜面との差分
+   */
+  void reuseCommands(Score previous, ScoreDiff diff) {
+    final var start = diff.getStart();
+    final var end = diff.getEnd();
+    final var shift = diff.getRemovedCount() - diff.getInsertedCount();
+
+    for (int i = 0; i < commands.size(); i++) {
+      if (i >= start && i < end) continue;
+
+      commands.set(i, previous.commands.get(i < start ? i : i + shift));
+    }
+  }
+
+  String getCacheKey() {
+    return cacheKey;
+  }
+
+  void setCacheKey(String cacheKey) {
+    this.cacheKey = cacheKey;
+  }
+
   public List<Oscillator> getOscillators() {
     return oscillators;
   }
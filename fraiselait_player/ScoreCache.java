@@ -0,0 +1,586 @@
+import dev.wycey.mido.fraiselait.builtins.WaveformType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * 譜面データと再生データのディスクキャッシュ。
+ * セクションの内容とキャッシュ形式のバージョンから求めたハッシュをキーとし、
+ * 以前と同じ内容のセクションは字句解析・構文解析・再生データの作成を行わずにバイナリ形式から読み込む。
+ * キャッシュの読み書きに失敗した場合は、通常の読み込みにフォールバックする。
+ */
+public class ScoreCache {
+  // Bump when the output of the lexer, parser or compiler changes, so that older entries are not used
+  static final int VERSION = 3;
+
+  private static final int MAGIC = 0x46524c43; // "FRLC"
+  private static final int MAX_ENTRIES = 256;
+
+  private static final String SCORE_EXTENSION = ".score";
+  private static final String PART_EXTENSION = ".part";
+
+  // Command tags
+  private static final byte PLAY_NOTE = 0;
+  private static final byte REST = 1;
+  private static final byte CHANGE_BPM = 2;
+  private static final byte CHANGE_MEASURE = 3;
+  private static final byte CHANGE_VOLUME = 4;
+  private static final byte PITCH = 5;
+  private static final byte VIBRATO = 6;
+  private static final byte REPLAY = 7;
+  private static final byte STOP = 8;
+  private static final byte USE = 9;
+
+  // Frequency tags
+  private static final byte NOTE_FREQUENCY = 0;
+  private static final byte RAW_FREQUENCY = 1;
+
+  private static final ScoreCache DEFAULT = new ScoreCache(
+      Path.of(System.getProperty("user.home"), ".fraiselait-player", "cache")
+  );
+
+  private final Path directory;
+
+  public ScoreCache(Path directory) {
+    this.directory = directory;
+  }
+
+  public static ScoreCache getDefault() {
+    return DEFAULT;
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * セクションの内容からキャッシュのキーを求める。
+   *
+   * @param lines セクションの内容 (見出し行と "end" 行を除いたもの)
+   */
+  public static String keyOf(List<? extends CharSequence> lines) {
+    final var builder = new KeyBuilder();
+
+    lines.forEach(builder::add);
+
+    return builder.build();
+  }
+
+  /**
+   * セクションの内容から譜面データを読み込む。
+   * キャッシュにない場合は構文解析を行い、その結果をキャッシュに保存する。
+   *
+   * @param lines セクションの内容 (見出し行と "end" 行を除いたもの)
+   */
+  public Score loadScore(List<? extends CharSequence> lines) {
+    final var key = keyOf(lines);
+
+    final var cached = readScore(key);
+
+    if (cached != null) return cached;
+
+    final var score = Score.parse(lines);
+
+    storeScore(key, score);
+
+    return score;
+  }
+
+  /**
+   * 譜面データをキャッシュに保存し、以降の再生データの読み書きに使うキーを設定する。
+   *
+   * @param key セクションの内容から求めたキー
+   */
+  void storeScore(String key, Score score) {
+    score.setCacheKey(key);
+
+    write(key + SCORE_EXTENSION, out -> writeScore(out, score));
+  }
+
+  /**
+   * 譜面の再生データをキャッシュから読み込む。
+   *
+   * @return キャッシュにない場合や、譜面がキャッシュを通じて読み込まれていない場合は null
+   */
+  PlaybackPart loadPart(Score score) {
+    final var key = score.getCacheKey();
+
+    if (key == null) return null;
+
+    return read(key + PART_EXTENSION, in -> readPart(in, score));
+  }
+
+  /**
+   * 再生データをキャッシュに保存する。譜面がキャッシュを通じて読み込まれていない場合は何もしない。
+   */
+  void storePart(PlaybackPart part) {
+    final var key = part.getScore().getCacheKey();
+
+    if (key == null) return;
+
+    write(key + PART_EXTENSION, out -> writePart(out, part));
+  }
+
+  /**
+   * 譜面データをキャッシュから読み込む。
+   *
+   * @param key セクションの内容から求めたキー
+   * @return キャッシュにない場合は null
+   */
+  Score readScore(String key) {
+    final var score = read(key + SCORE_EXTENSION, ScoreCache::readScore);
+
+    if (score != null) score.setCacheKey(key);
+
+    return score;
+  }
+
+  private <T> T read(String name, Reader<T> reader) {
+    final var file = directory.resolve(name);
+
+    if (!Files.isRegularFile(file)) return null;
+
+    try (final var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+
+      final var value = reader.read(in);
+
+      // Recently used entries are kept when the cache is pruned
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+
+      return value;
+    } catch (IOException | RuntimeException e) {
+      // A broken entry is treated as missing, and overwritten by the next write
+      return null;
+    }
+  }
+
+  private void write(String name, Writer writer) {
+    try {
+      Files.createDirectories(directory);
+
+      // Write to a temporary file first, so that readers never see a partial entry
+      final var temporary = Files.createTempFile(directory, name, ".tmp");
+
+      try {
+        try (final var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+          out.writeInt(MAGIC);
+          out.writeInt(VERSION);
+
+          writer.write(out);
+        }
+
+        Files.move(temporary, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        Files.deleteIfExists(temporary);
+      }
+
+      prune();
+    } catch (IOException e) {
+      // The cache is only an optimization, so loading continues without it
+    }
+  }
+
+  // Deletes the least recently used entries beyond the limit
+  private void prune() throws IOException {
+    final List<Path> entries;
+
+    try (final var files = Files.list(directory)) {
+      entries = files
+          .filter(file -> file.toString().endsWith(SCORE_EXTENSION) || file.toString().endsWith(PART_EXTENSION))
+          .collect(Collectors.toList());
+    }
+
+    if (entries.size() <= MAX_ENTRIES) return;
+
+    final var lastModified = new HashMap<Path, FileTime>();
+
+    for (final var entry : entries) {
+      lastModified.put(entry, Files.getLastModifiedTime(entry));
+    }
+
+    entries.sort(Comparator.comparing(lastModified::get));
+
+    for (final var entry : entries.subList(0, entries.size() - MAX_ENTRIES)) {
+      Files.deleteIfExists(entry);
+    }
+  }
+
+  // Score
+
+  private static void writeScore(DataOutputStream out, Score score) throws IOException {
+    out.writeFloat(score.getStartingBPM());
+    out.writeInt(score.getStartingMeasure());
+    out.writeFloat(score.getOffset());
+    out.writeDouble(score.getBaseA4Frequency());
+
+    final var oscillators = score.getOscillators();
+    final var oscillatorIndices = indexOscillators(oscillators);
+
+    out.writeInt(oscillators.size());
+
+    for (final var oscillator : oscillators) {
+      out.writeUTF(oscillator.getName());
+      out.writeUTF(oscillator.getWaveform().name());
+      out.writeDouble(oscillator.getStartVolume());
+      out.writeDouble(oscillator.getEndVolume());
+      out.writeDouble(oscillator.getGamma());
+      out.writeDouble(oscillator.getDuration());
+      out.writeInt(oscillator.getQuality());
+    }
+
+    final var commands = score.getCommands();
+
+    out.writeInt(commands.size());
+
+    for (final var command : commands) {
+      writeCommand(out, command, oscillatorIndices);
+    }
+  }
+
+  private static Score readScore(DataInputStream in) throws IOException {
+    final var bpm = in.readFloat();
+    final var measure = in.readInt();
+    final var offset = in.readFloat();
+    final var baseA4Frequency = in.readDouble();
+
+    final var oscillatorCount = in.readInt();
+    final var oscillators = new ArrayList<Oscillator>(oscillatorCount);
+
+    for (int i = 0; i < oscillatorCount; i++) {
+      oscillators.add(new Oscillator(
+          in.readUTF(),
+          WaveformType.valueOf(in.readUTF()),
+          in.readDouble(),
+          in.readDouble(),
+          in.readDouble(),
+          in.readDouble(),
+          in.readInt()
+      ));
+    }
+
+    final var commandCount = in.readInt();
+    final var commands = new ArrayList<ScoreCommand>(commandCount);
+
+    for (int i = 0; i < commandCount; i++) {
+      commands.add(readCommand(in, oscillators));
+    }
+
+    return new Score(bpm, measure, offset, baseA4Frequency, commands, oscillators);
+  }
+
+  private static Map<Oscillator, Integer> indexOscillators(List<Oscillator> oscillators) {
+    final var indices = new HashMap<Oscillator, Integer>();
+
+    for (int i = 0; i < oscillators.size(); i++) {
+      indices.put(oscillators.get(i), i);
+    }
+
+    return indices;
+  }
+
+  private static void writeCommand(DataOutputStream out, ScoreCommand command, Map<Oscillator, Integer> oscillatorIndices) throws IOException {
+    if (command instanceof ScoreCommand.PlayNote) {
+      final var playNote = (ScoreCommand.PlayNote) command;
+
+      out.writeByte(PLAY_NOTE);
+      writeFrequency(out, playNote.getFrequency());
+      out.writeFloat(playNote.getDuration());
+      out.writeFloat(playNote.getNextNoteDuration());
+    } else if (command instanceof ScoreCommand.Rest) {
+      out.writeByte(REST);
+      out.writeFloat(((ScoreCommand.Rest) command).getDuration());
+    } else if (command instanceof ScoreCommand.ChangeBPM) {
+      out.writeByte(CHANGE_BPM);
+      out.writeFloat(((ScoreCommand.ChangeBPM) command).getBPM());
+    } else if (command instanceof ScoreCommand.ChangeMeasure) {
+      out.writeByte(CHANGE_MEASURE);
+      out.writeInt(((ScoreCommand.ChangeMeasure) command).getMeasure());
+    } else if (command instanceof ScoreCommand.ChangeVolume) {
+      out.writeByte(CHANGE_VOLUME);
+      out.writeFloat(((ScoreCommand.ChangeVolume) command).getVolume());
+    } else if (command instanceof ScoreCommand.Pitch) {
+      final var pitch = (ScoreCommand.Pitch) command;
+
+      out.writeByte(PITCH);
+      writeFrequency(out, pitch.getBeforeFrequency());
+      writeFrequency(out, pitch.getAfterFrequency());
+      out.writeFloat(pitch.getDuration());
+      out.writeFloat(pitch.getNextNoteDuration());
+      out.writeInt(pitch.getQuality());
+      out.writeUTF(pitch.getFunction().getName());
+    } else if (command instanceof ScoreCommand.Vibrato) {
+      final var vibrato = (ScoreCommand.Vibrato) command;
+
+      out.writeByte(VIBRATO);
+      writeFrequency(out, vibrato.getFrequency1());
+      writeFrequency(out, vibrato.getFrequency2());
+      out.writeFloat(vibrato.getDuration());
+      out.writeFloat(vibrato.getNextNoteDuration());
+      out.writeInt(vibrato.getCount());
+    } else if (command instanceof ScoreCommand.Replay) {
+      out.writeByte(REPLAY);
+    } else if (command instanceof ScoreCommand.Stop) {
+      out.writeByte(STOP);
+    } else if (command instanceof ScoreCommand.Use) {
+      out.writeByte(USE);
+      out.writeInt(oscillatorIndices.get(((ScoreCommand.Use) command).getOscillator()));
+    } else {
+      throw new IllegalArgumentException("Unknown command: " + command);
+    }
+  }
+
+  private static ScoreCommand readCommand(DataInputStream in, List<Oscillator> oscillators) throws IOException {
+    final var tag = in.readByte();
+
+    switch (tag) {
+      case PLAY_NOTE:
+        return new ScoreCommand.PlayNote(readFrequency(in), in.readFloat(), in.readFloat());
+
+      case REST:
+        return new ScoreCommand.Rest(in.readFloat());
+
+      case CHANGE_BPM:
+        return new ScoreCommand.ChangeBPM(in.readFloat());
+
+      case CHANGE_MEASURE:
+        return new ScoreCommand.ChangeMeasure(in.readInt());
+
+      case CHANGE_VOLUME:
+        return new ScoreCommand.ChangeVolume(in.readFloat());
+
+      case PITCH:
+        return new ScoreCommand.Pitch(
+            readFrequency(in),
+            readFrequency(in),
+            in.readFloat(),
+            in.readFloat(),
+            in.readInt(),
+            TimingFunctions.fromName(in.readUTF())
+        );
+
+      case VIBRATO:
+        return new ScoreCommand.Vibrato(readFrequency(in), readFrequency(in), in.readFloat(), in.readFloat(), in.readInt());
+
+      case REPLAY:
+        return ScoreCommand.Replay.getInstance();
+
+      case STOP:
+        return ScoreCommand.Stop.getInstance();
+
+      case USE:
+        return new ScoreCommand.Use(oscillators.get(in.readInt()));
+
+      default:
+        throw new IOException("Unknown command tag: " + tag);
+    }
+  }
+
+  private static void writeFrequency(DataOutputStream out, Frequency frequency) throws IOException {
+    if (frequency instanceof Frequency.NoteFrequency) {
+      final var note = ((Frequency.NoteFrequency) frequency).getNote();
+
+      out.writeByte(NOTE_FREQUENCY);
+      out.writeByte(note.index);
+      out.writeInt(note.octave);
+    } else {
+      out.writeByte(RAW_FREQUENCY);
+      out.writeDouble(frequency.get());
+    }
+  }
+
+  private static Frequency readFrequency(DataInputStream in) throws IOException {
+    final var tag = in.readByte();
+
+    switch (tag) {
+      case NOTE_FREQUENCY:
+        return new Frequency.NoteFrequency(Note.of(in.readByte(), in.readInt()));
+
+      case RAW_FREQUENCY:
+        return new Frequency.RawFrequency(in.readDouble());
+
+      default:
+        throw new IOException("Unknown frequency tag: " + tag);
+    }
+  }
+
+  // Playback part
+
+  private static void writePart(DataOutputStream out, PlaybackPart part) throws IOException {
+    final var oscillatorIndices = indexOscillators(part.getScore().getOscillators());
+    final var timeline = part.getTimeline();
+    final var playbackData = timeline.getPlaybackDataTable();
+
+    out.writeLong(part.getTotalDuration().toNanos());
+    out.writeBoolean(part.isLoop());
+
+    out.writeInt(playbackData.size());
+
+    for (final var data : playbackData) {
+      out.writeInt(data.getIndex());
+      out.writeFloat(data.getBPM());
+      out.writeInt(data.getMeasure());
+      out.writeFloat(data.getVolume());
+      out.writeInt(oscillatorIndices.get(data.getOscillator()));
+    }
+
+    out.writeInt(timeline.size());
+
+    for (int i = 0; i < timeline.size(); i++) {
+      final var kind = timeline.getKind(i);
+
+      out.writeInt(timeline.getPlaybackDataIndex(i));
+      out.writeLong(timeline.getOffset(i));
+      out.writeByte(kind);
+
+      if (kind == PlaybackTimeline.CHANGE_WAVEFORM) {
+        out.writeUTF(timeline.getWaveform(i).name());
+      } else if (kind == PlaybackTimeline.TONE || kind == PlaybackTimeline.TIMED_TONE) {
+        out.writeFloat(timeline.getFrequency(i));
+        out.writeFloat(timeline.getVolume(i));
+
+        if (kind == PlaybackTimeline.TIMED_TONE) out.writeLong(timeline.getDuration(i).toNanos());
+      }
+    }
+
+    final var checkpoints = part.getCheckpoints();
+
+    out.writeInt(checkpoints.size());
+
+    for (final var checkpoint : checkpoints) {
+      out.writeInt(checkpoint.getIndex());
+      out.writeInt(checkpoint.getEventCount());
+      out.writeFloat(checkpoint.getBPM());
+      out.writeInt(checkpoint.getMeasure());
+      out.writeFloat(checkpoint.getVolume());
+      out.writeInt(oscillatorIndices.get(checkpoint.getOscillator()));
+      out.writeUTF(checkpoint.getWaveform().name());
+      out.writeLong(checkpoint.getOffset());
+      out.writeBoolean(checkpoint.isLoop());
+    }
+  }
+
+  private static PlaybackPart readPart(DataInputStream in, Score score) throws IOException {
+    final var oscillators = score.getOscillators();
+
+    final var totalDuration = Duration.ofNanos(in.readLong());
+    final var loop = in.readBoolean();
+
+    final var playbackDataCount = in.readInt();
+    final var playbackData = new ArrayList<PlaybackData>(playbackDataCount);
+
+    for (int i = 0; i < playbackDataCount; i++) {
+      playbackData.add(new PlaybackData(in.readInt(), in.readFloat(), in.readInt(), in.readFloat(), oscillators.get(in.readInt())));
+    }
+
+    final var eventCount = in.readInt();
+    final var timeline = new PlaybackTimeline();
+
+    for (int i = 0; i < eventCount; i++) {
+      final var data = playbackData.get(in.readInt());
+      final var offset = in.readLong();
+      final var kind = in.readByte();
+
+      switch (kind) {
+        case PlaybackTimeline.CHANGE_WAVEFORM:
+          timeline.addChangeWaveform(data, offset, WaveformType.valueOf(in.readUTF()));
+          break;
+
+        case PlaybackTimeline.NO_TONE:
+          timeline.addNoTone(data, offset);
+          break;
+
+        case PlaybackTimeline.TONE:
+          timeline.addTone(data, in.readFloat(), in.readFloat(), offset);
+          break;
+
+        case PlaybackTimeline.TIMED_TONE:
+          timeline.addTone(data, in.readFloat(), in.readFloat(), offset, in.readLong());
+          break;
+
+        default:
+          throw new IOException("Unknown event kind: " + kind);
+      }
+    }
+
+    final var checkpointCount = in.readInt();
+    final var checkpoints = new ArrayList<PlaybackCompiler.State>(checkpointCount);
+
+    for (int i = 0; i < checkpointCount; i++) {
+      checkpoints.add(new PlaybackCompiler.State(
+          in.readInt(),
+          in.readInt(),
+          in.readFloat(),
+          in.readInt(),
+          in.readFloat(),
+          oscillators.get(in.readInt()),
+          WaveformType.valueOf(in.readUTF()),
+          in.readLong(),
+          in.readBoolean()
+      ));
+    }
+
+    return new PlaybackPart(score, timeline, checkpoints, totalDuration, loop);
+  }
+
+  /**
+   * セクションの内容を1行ずつ加えて、{@link #keyOf(List)} と同じキャッシュのキーを求める。
+   * セクションの内容を保持せずにキーを求めるために使う。
+   */
+  static final class KeyBuilder {
+    private final MessageDigest digest;
+
+    KeyBuilder() {
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+
+      digest.update(("v" + VERSION + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    void add(CharSequence line) {
+      digest.update(line.toString().getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) '\n');
+    }
+
+    String build() {
+      final var hash = digest.digest();
+      final var key = new StringBuilder(hash.length * 2);
+
+      for (final var b : hash) {
+        key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+
+      return key.toString();
+    }
+  }
+
+  @FunctionalInterface
+  private interface Reader<T> {
+    T read(DataInputStream in) throws IOException;
+  }
+
+  @FunctionalInterface
+  private interface Writer {
+    void write(DataOutputStream out) throws IOException;
+  }
+}
@@ -1,3 +1,5 @@
+import java.util.Objects;
+
 public abstract class ScoreCommand {
   private ScoreCommand() {
   }
@@ -50,6 +52,23 @@ public abstract class ScoreCommand {
     public double getBaseA4Frequency() {
       return baseA4Frequency;
     }
+
+    @Override
+    public final boolean equals(Object o) {
+      if (!(o instanceof Header)) return false;
+
+      Header that = (Header) o;
+      return Float.compare(bpm, that.bpm) == 0 && measure == that.measure && Float.compare(offset, that.offset) == 0 && Double.compare(baseA4Frequency, that.baseA4Frequency) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = Float.hashCode(bpm);
+      result = 31 * result + measure;
+      result = 31 * result + Float.hashCode(offset);
+      result = 31 * result + Double.hashCode(baseA4Frequency);
+      return result;
+    }
   }
 
   public static class PlayNote extends ScoreCommand {
@@ -90,6 +109,22 @@ public abstract class ScoreCommand {
     public float getNextNoteDuration() {
       return nextNoteDuration;
     }
+
+    @Override
+    public final boolean equals(Object o) {
+      if (!(o instanceof PlayNote)) return false;
+
+      PlayNote that = (PlayNote) o;
+      return Float.compare(duration, that.duration) == 0 && Float.compare(nextNoteDuration, that.nextNoteDuration) == 0 && Objects.equals(frequency, that.frequency);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = Objects.hashCode(frequency);
+      result = 31 * result + Float.hashCode(duration);
+      result = 31 * result + Float.hashCode(nextNoteDuration);
+      return result;
+    }
   }
 
   public static class Rest extends ScoreCommand {
@@ -100,7 +135,7 @@ public abstract class ScoreCommand {
     }
 
     public static void parse(ScoreParserContext context) {
-      context.expect(ScoreToken.RestToken.class);
+      context.expect(ScoreTokenType.REST);
       context.expectComma();
       final var durationToken = context.expectNumber();
       context.expectEndOfCommand();
@@ -115,6 +150,19 @@ public abstract class ScoreCommand {
     public float getDuration() {
       return duration;
     }
+
+    @Override
+    public final boolean equals(Object o) {
+      if (!(o instanceof Rest)) return false;
+
+      Rest that = (Rest) o;
+      return Float.compare(duration, that.duration) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return Float.hashCode(duration);
+    }
   }
 
   public static class ChangeBPM extends ScoreCommand {
@@ -140,6 +188,19 @@ public abstract class ScoreCommand {
     public float getBPM() {
       return bpm;
     }
+
+    @Override
+    public final boolean equals(Object o) {
+      if (!(o instanceof ChangeBPM)) return false;
+
+      ChangeBPM that = (ChangeBPM) o;
+      return Float.compare(bpm, that.bpm) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return Float.hashCode(bpm);
+    }
   }
 
   public static class ChangeMeasure extends ScoreCommand {
@@ -165,6 +226,19 @@ public abstract class ScoreCommand {
     public int getMeasure() {
       return measure;
     }
+
+    @Override
+    public final boolean equals(Object o) {
+      if (!(o instanceof ChangeMeasure)) return false;
+
+      ChangeMeasure that = (ChangeMeasure) o;
+      return measure == that.measure;
+    }
+
+    @Override
+    public int hashCode() {
+      return measure;
+    }
   }
 
   public static class ChangeVolume extends ScoreCommand {
@@ -193,6 +267,19 @@ public abstract class ScoreCommand {
     public float getVolume() {
       return volume;
     }
+
+    @Override
+    public final boolean equals(Object o) {
+      if (!(o instanceof ChangeVolume)) return false;
+
+      ChangeVolume that = (ChangeVolume) o;
+      return Float.compare(volume, that.volume) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return Float.hashCode(volume);
+    }
   }
 
   public static class Pitch extends ScoreCommand {
@@ -279,6 +366,25 @@ public abstract class ScoreCommand {
     public TimingFunctions getFunction() {
       return function;
     }
+
+    @Override
+    public final boolean equals(Object o) {
+      if (!(o instanceof Pitch)) return false;
+
+      Pitch that = (Pitch) o;
+      return Float.compare(duration, that.duration) == 0 && Float.compare(nextNoteDuration, that.nextNoteDuration) == 0 && quality == that.quality && Objects.equals(beforeFrequency, that.beforeFrequency) && Objects.equals(afterFrequency, that.afterFrequency) && function == that.function;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = Objects.hashCode(beforeFrequency);
+      result = 31 * result + Objects.hashCode(afterFrequency);
+      result = 31 * result + Float.hashCode(duration);
+      result = 31 * result + Float.hashCode(nextNoteDuration);
+      result = 31 * result + quality;
+      result = 31 * result + Objects.hashCode(function);
+      return result;
+    }
   }
 
   public static class Vibrato extends ScoreCommand {
@@ -338,6 +444,24 @@ public abstract class ScoreCommand {
     public int getCount() {
       return count;
     }
+
+    @Override
+    public final boolean equals(Object o) {
+      if (!(o instanceof Vibrato)) return false;
+
+      Vibrato that = (Vibrato) o;
+      return Float.compare(duration, that.duration) == 0 && Float.compare(nextNoteDuration, that.nextNoteDuration) == 0 && count == that.count && Objects.equals(frequency1, that.frequency1) && Objects.equals(frequency2, that.frequency2);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = Objects.hashCode(frequency1);
+      result = 31 * result + Objects.hashCode(frequency2);
+      result = 31 * result + Float.hashCode(duration);
+      result = 31 * result + Float.hashCode(nextNoteDuration);
+      result = 31 * result + count;
+      return result;
+    }
   }
 
   public static class Replay extends ScoreCommand {
@@ -406,5 +530,18 @@ public abstract class ScoreCommand {
     public Oscillator getOscillator() {
       return oscillator;
     }
+
+    @Override
+    public final boolean equals(Object o) {
+      if (!(o instanceof Use)) return false;
+
+      Use that = (Use) o;
+      return Objects.equals(oscillator, that.oscillator);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(oscillator);
+    }
   }
 }
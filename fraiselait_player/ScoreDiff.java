@@ -0,0 +1,106 @@
+/**
+ * 再読み込み前後の譜面の差分。
+ * 先頭と末尾で一致するコマンドを除いた、一続きの変更範囲として表される。
+ * ヘッダーやオシレーターの定義が変わった場合は、すべてのコマンドが変更されたものとみなす。
+ */
+public class ScoreDiff {
+  private final int start;
+  private final int removedCount;
+  private final int insertedCount;
+
+  private ScoreDiff(int start, int removedCount, int insertedCount) {
+    this.start = start;
+    this.removedCount = removedCount;
+    this.insertedCount = insertedCount;
+  }
+
+  /**
+   * 二つの譜面の差分を求める。
+   *
+   * @param before 以前の譜面
+   * @param after  新しい譜面
+   */
+  public static ScoreDiff between(Score before, Score after) {
+    final var beforeCommands = before.getCommands();
+    final var afterCommands = after.getCommands();
+    final var beforeSize = beforeCommands.size();
+    final var afterSize = afterCommands.size();
+
+    // A different starting state affects every command
+    if (!hasSameHeader(before, after)) return new ScoreDiff(0, beforeSize, afterSize);
+
+    final var maxCommon = Math.min(beforeSize, afterSize);
+
+    var prefix = 0;
+
+    while (prefix < maxCommon && beforeCommands.get(prefix).equals(afterCommands.get(prefix))) {
+      prefix++;
+    }
+
+    var suffix = 0;
+
+    while (suffix < maxCommon - prefix && beforeCommands.get(beforeSize - 1 - suffix).equals(afterCommands.get(afterSize - 1 - suffix))) {
+      suffix++;
+    }
+
+    return new ScoreDiff(prefix, beforeSize - prefix - suffix, afterSize - prefix - suffix);
+  }
+
+  /**
+   * 変更のない譜面の差分を作成する。
+   */
+  static ScoreDiff unchanged(Score score) {
+    return new ScoreDiff(score.getCommandCount(), 0, 0);
+  }
+
+  private static boolean hasSameHeader(Score before, Score after) {
+    return Float.compare(before.getStartingBPM(), after.getStartingBPM()) == 0
+        && before.getStartingMeasure() == after.getStartingMeasure()
+        && Float.compare(before.getOffset(), after.getOffset()) == 0
+        && Double.compare(before.getBaseA4Frequency(), after.getBaseA4Frequency()) == 0
+        && before.getOscillators().equals(after.getOscillators());
+  }
+
+  /**
+   * 最初に変更されたコマンドの番号を取得する。
+   */
+  public int getStart() {
+    return start;
+  }
+
+  /**
+   * 新しい譜面で、変更範囲の直後のコマンドの番号を取得する。
+   */
+  public int getEnd() {
+    return start + insertedCount;
+  }
+
+  /**
+   * 以前の譜面から取り除かれたコマンドの数を取得する。
+   */
+  public int getRemovedCount() {
+    return removedCount;
+  }
+
+  /**
+   * 新しい譜面に挿入されたコマンドの数を取得する。
+   */
+  public int getInsertedCount() {
+    return insertedCount;
+  }
+
+  public boolean isEmpty() {
+    return removedCount == 0 && insertedCount == 0;
+  }
+
+  @Override
+  public String toString() {
+    if (isEmpty()) return "ScoreDiff(unchanged)";
+
+    return "ScoreDiff(" +
+        "start=" + start +
+        ", removed=" + removedCount +
+        ", inserted=" + insertedCount +
+        ')';
+  }
+}
@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * 譜面ファイル全体を表すクラス。
+ * ファイルは一度だけ読み込まれ、各パートのセクション (sound ... end) の位置を索引として保持する。
+ * {@link #reload()} で再読み込みした場合は、以前と内容の変わらないセクションの譜面データを再利用する。
+ */
+public class ScoreFile {
+  private static final Pattern SECTION_HEADER_PATTERN = Pattern.compile("^sound[0-9]*$");
+  private static final String SECTION_END = "end";
+
+  private final Path path;
+  private final List<String> lines;
+  private final Map<String, Section> sections;
+  // Sections may be loaded in parallel
+  private final Map<String, LoadedSection> loadedSections = new ConcurrentHashMap<>();
+  private final Map<String, ScoreDiff> diffs = new ConcurrentHashMap<>();
+
+  // Sections loaded from the file before reloading, consumed as they are loaded again
+  private final Map<String, LoadedSection> previousSections = new ConcurrentHashMap<>();
+
+  private ScoreFile(Path path, List<String> lines, Map<String, Section> sections) {
+    this.path = path;
+    this.lines = lines;
+    this.sections = sections;
+  }
+
+  /**
+   * ファイルパスから譜面ファイルを読み込み、セクションの索引を作成する。
+   *
+   * @param filePath 読み込むファイルのパス
+   */
+  public static ScoreFile read(Path filePath) throws IOException {
+    if (!Files.isReadable(filePath)) throw new IllegalArgumentException();
+
+    final var lines = new ArrayList<String>();
+
+    for (final var line : Files.readAllLines(filePath)) {
+      if (!line.isEmpty()) lines.add(line); // Skip empty lines
+    }
+
+    final var sections = new HashMap<String, Section>();
+    final var openSections = new ArrayList<String>();
+
+    for (int i = 0; i < lines.size(); i++) {
+      final var line = lines.get(i);
+
+      if (line.equals(SECTION_END)) {
+        for (final var name : openSections) {
+          sections.get(name).end = i;
+        }
+
+        openSections.clear();
+
+        continue;
+      }
+
+      // The first occurrence wins, as the section is searched from the beginning of the file
+      if (SECTION_HEADER_PATTERN.matcher(line).matches() && !sections.containsKey(line)) {
+        sections.put(line, new Section(i + 1, lines.size()));
+        openSections.add(line);
+      }
+    }
+
+    return new ScoreFile(filePath, lines, sections);
+  }
+
+  /**
+   * 同じファイルを再読み込みする。
+   * 以降に読み込むセクションは以前の内容と行単位で比較され、変更のないセクションは字句解析・構文解析を行わずに以前の譜面データを返す。
+   */
+  public ScoreFile reload() throws IOException {
+    final var reloaded = read(path);
+
+    reloaded.previousSections.putAll(loadedSections);
+
+    return reloaded;
+  }
+
+  /**
+   * パート数に応じたセクション名を取得する。
+   * 1パートの場合は "sound"、複数パートの場合は "sound0", "sound1", ... となる。
+   *
+   * @param partIndex パート番号
+   * @param parts     パート数
+   */
+  public static String sectionNameOf(int partIndex, int parts) {
+    return parts > 1 ? "sound" + partIndex : "sound";
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public boolean hasSection(String prefix) {
+    return sections.containsKey(prefix);
+  }
+
+  /**
+   * セクションの内容を取得する。見出し行と "end" 行は含まれない。
+   *
+   * @param prefix 譜面データの先頭を示す文字列
+   */
+  public List<String> getSectionLines(String prefix) {
+    final var section = sections.get(prefix);
+
+    if (section == null) return List.of();
+
+    return lines.subList(section.start, section.end);
+  }
+
+  /**
+   * セクションから譜面データを読み込む。
+   * 異なるセクションであれば、複数のスレッドから同時に呼び出してもよい。
+   *
+   * @param prefix 譜面データの先頭を示す文字列
+   */
+  public Score load(String prefix) {
+    final var sectionLines = getSectionLines(prefix);
+    final var previous = previousSections.get(prefix);
+
+    final Score score;
+
+    if (previous != null && previous.lines.equals(sectionLines)) {
+      score = previous.score;
+
+      diffs.put(prefix, ScoreDiff.unchanged(score));
+    } else {
+      score = ScoreCache.getDefault().loadScore(sectionLines);
+
+      if (previous != null) {
+        final var diff = ScoreDiff.between(previous.score, score);
+
+        score.reuseCommands(previous.score, diff);
+
+        diffs.put(prefix, diff);
+      }
+    }
+
+    previousSections.remove(prefix);
+    loadedSections.put(prefix, new LoadedSection(sectionLines, score));
+
+    return score;
+  }
+
+  /**
+   * 再読み込み前の譜面との差分を取得する。
+   *
+   * @param prefix 譜面データの先頭を示す文字列
+   * @return 再読み込みでない場合や、以前にそのセクションが読み込まれていなかった場合は null
+   */
+  public ScoreDiff getDiff(String prefix) {
+    return diffs.get(prefix);
+  }
+
+  /**
+   * 全パートの譜面データを並列に読み込む。
+   *
+   * @param parts パート数
+   */
+  public List<Score> loadAll(int parts) {
+    return ParallelLoader.loadAll(parts, i -> load(sectionNameOf(i, parts)));
+  }
+
+  private static final class LoadedSection {
+    private final List<String> lines;
+    private final Score score;
+
+    private LoadedSection(List<String> lines, Score score) {
+      this.lines = lines;
+      this.score = score;
+    }
+  }
+
+  private static final class Section {
+    private final int start;
+    private int end;
+
+    private Section(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+  }
+}
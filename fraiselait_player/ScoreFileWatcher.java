@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 譜面ファイルの変更を監視するクラス。
+ * 変更が検出されると、監視用のスレッドでコールバックが呼び出される。
+ * エディタの保存は複数のイベントになることが多いため、一定時間変更が続かなくなってから一度だけ呼び出す。
+ * コールバックで例外が発生しても監視は続けられ、例外はエラー用のコールバックに渡される。
+ */
+public class ScoreFileWatcher implements AutoCloseable {
+  private static final long SETTLE_MILLIS = 100;
+
+  private final Path file;
+  private final WatchService watchService;
+  private final Runnable onChange;
+  private final Consumer<? super RuntimeException> onError;
+  private final Thread thread;
+
+  /**
+   * @param file     監視するファイル
+   * @param onChange ファイルが変更されたときに、監視用のスレッドで呼び出される
+   * @param onError  onChange で例外が発生したときに、監視用のスレッドで呼び出される
+   */
+  public ScoreFileWatcher(Path file, Runnable onChange, Consumer<? super RuntimeException> onError) throws IOException {
+    this.file = file.toAbsolutePath();
+    this.onChange = onChange;
+    this.onError = onError;
+    this.watchService = FileSystems.getDefault().newWatchService();
+
+    // Editors often replace the file instead of writing to it, so the directory is watched
+    this.file.getParent().register(
+        watchService,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY
+    );
+
+    thread = new Thread(this::watch, "ScoreFileWatcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        if (!pollChange(watchService.take())) continue;
+
+        // Wait for the remaining events of the same save
+        while (true) {
+          final var key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+
+          if (key == null) break;
+
+          pollChange(key);
+        }
+
+        try {
+          onChange.run();
+        } catch (RuntimeException e) {
+          // Keep watching, as the next save may fix the problem
+          onError.accept(e);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ClosedWatchServiceException e) {
+      // closed
+    } finally {
+      // Also release the watch service if the thread ends by an error
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        // Nothing is left to watch
+      }
+    }
+  }
+
+  private boolean pollChange(WatchKey key) {
+    var changed = false;
+
+    for (final var event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        changed = true;
+
+        continue;
+      }
+
+      final var name = (Path) event.context();
+
+      if (name.equals(file.getFileName())) changed = true;
+    }
+
+    key.reset();
+
+    return changed;
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+    thread.interrupt();
+  }
+}
@@ -1,13 +1,52 @@
+import java.io.BufferedReader;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class ScoreLexer {
-  private final String source;
-  private final List<ScoreToken<?>> tokens = new ArrayList<>();
-  private final Map<String, List<ScoreToken<?>>> definitions = new HashMap<>();
+  // Character classes of ASCII characters, looked up instead of calling the Character methods
+  private static final int WHITESPACE = 1;
+  private static final int DIGIT = 1 << 1;
+  private static final int LETTER = 1 << 2;
+  private static final int IDENTIFIER_PART = 1 << 3; // letters, digits, '-' and '_'
+  private static final int NOTE_PART = 1 << 4; // letters, digits, '-' and '#'
+  private static final byte[] CHARACTER_CLASSES = new byte[0x80];
+
+  // Powers of ten that are exactly representable as double
+  private static final double[] POWERS_OF_TEN = new double[23];
+  private static final int MAX_EXACT_DIGITS = 15;
+
+  // Lines per chunk in parallel lexing, to keep the overhead of each task small
+  private static final int MIN_CHUNK_LINES = 4096;
+  private static final int CHUNKS_PER_THREAD = 4;
+  private static final String DEFINE_LITERAL = ScoreKeywords.DEFINE.getLiteral();
+
+  static {
+    for (char c = 0; c < CHARACTER_CLASSES.length; c++) {
+      CHARACTER_CLASSES[c] = (byte) characterClassOf(c);
+    }
+
+    POWERS_OF_TEN[0] = 1;
+
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private final Iterator<? extends CharSequence> lines;
+  private final ScoreTokenBuffer tokens = new ScoreTokenBuffer();
+  private final Map<String, Definition> definitions;
+  private final ScoreTokenBuffer definitionTokens;
   private final int depth;
+  // Whether more lines follow in another lexer, for a chunk of parallel lexing
+  private final boolean continued;
+  private CharSequence source = "";
+  private boolean finished = false;
   private int position = 0;
   private int startPosition = 0;
   private int line = 1;
@@ -15,99 +54,277 @@ public class ScoreLexer {
   private int linePosition = 0;
   private int baseLine = 0;
   private int baseLinePosition = 0;
+  private int consumedLines = 0;
+
+  public ScoreLexer(CharSequence source) {
+    this(List.of(source).iterator());
+  }
 
-  public ScoreLexer(String source) {
-    this.source = source;
+  /**
+   * 行単位で字句解析を行う。
+   * 行の間には改行が補われるため、各行は改行文字を含まないこと。
+   *
+   * @param lines 字句解析する行
+   */
+  public ScoreLexer(Iterator<? extends CharSequence> lines) {
+    this.lines = lines;
+    this.definitions = new HashMap<>();
+    this.definitionTokens = new ScoreTokenBuffer();
     this.depth = 0;
+    this.continued = false;
+  }
+
+  /**
+   * Reader から一行ずつ読み込みながら字句解析を行う。
+   * Reader は呼び出し側で閉じること。
+   */
+  public ScoreLexer(Reader reader) {
+    this(new BufferedReader(reader).lines().iterator());
   }
 
-  private ScoreLexer(String source, int baseLine, int baseLinePosition, Map<String, List<ScoreToken<?>>> definitions, int depth) {
-    this.source = source;
+  private ScoreLexer(CharSequence source, int baseLine, int baseLinePosition, Map<String, Definition> definitions, ScoreTokenBuffer definitionTokens, int depth) {
+    this.lines = List.of(source).iterator();
+    this.definitions = definitions;
+    this.definitionTokens = definitionTokens;
     this.depth = depth;
+    this.continued = false;
 
     this.baseLine = baseLine;
     this.baseLinePosition = baseLinePosition;
+  }
+
+  private ScoreLexer(List<? extends CharSequence> lines, int line, boolean continued, Map<String, Definition> definitions, ScoreTokenBuffer definitionTokens) {
+    this.lines = lines.iterator();
+    this.line = line;
+    this.continued = continued;
+    this.definitions = definitions;
+    this.definitionTokens = definitionTokens;
+    this.depth = 0;
+  }
+
+  private static int characterClassOf(char c) {
+    var characterClass = 0;
+
+    if (Character.isWhitespace(c)) characterClass |= WHITESPACE;
+    if (Character.isDigit(c)) characterClass |= DIGIT;
+    if (Character.isLetter(c)) characterClass |= LETTER;
+    if (Character.isLetterOrDigit(c) || c == '-' || c == '_') characterClass |= IDENTIFIER_PART;
+    if (Character.isLetterOrDigit(c) || c == '-' || c == '#') characterClass |= NOTE_PART;
+
+    return characterClass;
+  }
+
+  private static boolean is(char c, int characterClass) {
+    if (c < CHARACTER_CLASSES.length) return (CHARACTER_CLASSES[c] & characterClass) != 0;
+
+    return (characterClassOf(c) & characterClass) != 0;
+  }
+
+  private ScoreLexer createSubLexer(CharSequence source) {
+    // Definitions are shared read-only, since DEFINE is not allowed in a definition
+    return new ScoreLexer(source, line, startLinePosition, definitions, definitionTokens, depth + 1);
+  }
+
+  /**
+   * 入力全体を字句解析する。
+   */
+  public ScoreTokenBuffer tokenize() {
+    while (!finished) {
+      scanChunk();
+    }
+
+    return tokens;
+  }
+
+  /**
+   * 行を分割し、並列に字句解析する。
+   * DEFINE を含みうる行までは先頭から逐次的に字句解析し、残りの行を改行の位置で分割して ForkJoinPool 上で字句解析する。
+   * 分割した範囲には DEFINE が含まれないため、定義の表は読み取り専用として共有される。
+   * 結果は {@link #tokenize()} と同じトークン列となる。
+   *
+   * @param lines 字句解析する行 (各行は改行文字を含まないこと)
+   */
+  public static ScoreTokenBuffer tokenizeParallel(List<? extends CharSequence> lines) {
+    final var lexer = new ScoreLexer(lines.iterator());
+    final var lastDefineLine = findLastDefineLine(lines);
+
+    // DEFINE may continue on the following lines, so the prefix ends after the chunk that consumed its line
+    while (!lexer.finished && lexer.consumedLines <= lastDefineLine) {
+      lexer.scanChunk();
+    }
+
+    final var rest = lines.subList(lexer.consumedLines, lines.size());
+    final var pool = ForkJoinPool.commonPool();
+    final var chunkCount = Math.min(rest.size() / MIN_CHUNK_LINES, pool.getParallelism() * CHUNKS_PER_THREAD);
+
+    if (lexer.finished || chunkCount <= 1) return lexer.tokenize();
+
+    final var tasks = new ArrayList<ForkJoinTask<ScoreTokenBuffer>>(chunkCount);
+    var chunkLine = lexer.line;
+
+    for (int i = 0; i < chunkCount; i++) {
+      final var chunk = rest.subList(rest.size() * i / chunkCount, rest.size() * (i + 1) / chunkCount);
+      final var chunkLexer = new ScoreLexer(chunk, chunkLine, i < chunkCount - 1, lexer.definitions, lexer.definitionTokens);
 
-    this.definitions.putAll(definitions);
+      tasks.add(pool.submit(chunkLexer::tokenize));
+
+      // Without DEFINE, every line ends with exactly one newline token
+      chunkLine += chunk.size();
+    }
+
+    for (final var task : tasks) {
+      task.quietlyJoin();
+
+      // The first error in the source order is reported, as in sequential lexing
+      final var exception = task.getException();
+
+      if (exception instanceof RuntimeException) throw (RuntimeException) exception;
+      if (exception instanceof Error) throw (Error) exception;
+
+      lexer.tokens.addAll(task.getRawResult());
+    }
+
+    return lexer.tokens;
   }
 
-  private ScoreLexer createSubLexer(String source) {
-    return new ScoreLexer(source, line, startLinePosition, getDefinitions(), depth + 1);
+  // Returns the index of the last line that may contain DEFINE, or -1.
+  // Lines with other characters than ASCII are included, since they may match the keyword case-insensitively.
+  private static int findLastDefineLine(List<? extends CharSequence> lines) {
+    for (int i = lines.size() - 1; i >= 0; i--) {
+      final var line = lines.get(i);
+
+      for (int j = 0; j < line.length(); j++) {
+        final var c = line.charAt(j);
+
+        if (c >= 0x80) return i;
+        if ((c | 0x20) == 'd' && ScoreKeywords.match(line, j, Math.min(j + DEFINE_LITERAL.length(), line.length())) == ScoreKeywords.DEFINE) return i;
+      }
+    }
+
+    return -1;
   }
 
-  public List<ScoreToken<?>> tokenize() {
+  /**
+   * 次の行を字句解析し、バッファの内容を置き換える。
+   * 字句解析は構文解析器の消費に合わせて一行ずつ進むため、保持されるのは現在の行のトークンのみとなる。
+   *
+   * @return 入力の終端に達しており、新たなトークンが得られなかった場合は false
+   */
+  boolean scanNext() {
+    tokens.clear();
+
+    while (tokens.isEmpty() && !finished) {
+      scanChunk();
+    }
+
+    return !tokens.isEmpty();
+  }
+
+  boolean isFinished() {
+    return finished;
+  }
+
+  /**
+   * 現在の行のトークンを保持するバッファを取得する。
+   * 内容は {@link #scanNext()} を呼び出す度に置き換えられる。
+   */
+  ScoreTokenBuffer getTokens() {
+    return tokens;
+  }
+
+  private void scanChunk() {
+    if (!lines.hasNext()) {
+      if (!continued) tokens.add(ScoreTokenType.EOF, position, 0, line, linePosition);
+
+      finished = true;
+
+      return;
+    }
+
+    nextLine();
+
     while (!isAtEnd()) {
       startPosition = position;
       startLinePosition = linePosition;
 
       scanToken();
     }
+  }
 
-    tokens.add(new ScoreToken.EOFToken(line, linePosition));
+  private void nextLine() {
+    final var nextLine = lines.next();
 
-    return tokens;
+    // Lines are joined with a newline, except for the last one
+    source = lines.hasNext() || continued ? nextLine + "\n" : nextLine;
+    position = 0;
+    consumedLines++;
+  }
+
+  // DEFINE may continue on the following lines while its parameters are missing
+  private boolean hasMoreInput() {
+    if (!isAtEnd()) return true;
+    if (!lines.hasNext()) return false;
+
+    nextLine();
+
+    return true;
   }
 
   private void scanToken() {
     final var c = peek();
 
-    if (Character.isWhitespace(c)) {
-      final var stringValue = String.valueOf(c);
-
-      if (ScoreToken.NewlineToken.isNewline(stringValue)) {
-        addToken(new ScoreToken.NewlineToken(stringValue, line));
+    switch (c) {
+      case ScoreToken.NewlineToken.NEWLINE_SYMBOL:
+        tokens.add(ScoreTokenType.NEWLINE, position, 1, line, 0);
 
         line++;
         linePosition = 0;
-      }
 
-      advance();
-
-      return;
-    }
+        advance();
 
-    if (c == '#') {
-      skipComment();
+        return;
+      case '#':
+        skipComment();
 
-      return;
-    }
+        return;
+      case ScoreToken.CommaToken.COMMA_SYMBOL:
+        tokens.add(ScoreTokenType.COMMA, position, 1, line, linePosition);
 
-    if (ScoreToken.CommaToken.isComma(String.valueOf(c))) {
-      addToken(new ScoreToken.CommaToken(line, linePosition));
+        advance();
 
-      advance();
+        return;
+      case ScoreToken.SemicolonToken.SEMICOLON_SYMBOL:
+        tokens.add(ScoreTokenType.SEMICOLON, position, 1, line, linePosition);
 
-      return;
-    }
+        advance();
 
-    if (ScoreToken.SemicolonToken.isSemicolon(String.valueOf(c))) {
-      addToken(new ScoreToken.SemicolonToken(line, linePosition));
+        return;
+      case '-':
+        advance();
 
-      advance();
+        if (match('-') && match('-')) {
+          tokens.add(ScoreTokenType.REST, startPosition, position - startPosition, line, startLinePosition);
+        } else {
+          // TODO This may be false positive
+          //if (!processNote(-1)) throw new ScoreParseException("Invalid note format", line, linePosition);
+        }
 
-      return;
+        return;
     }
 
-    if (c == '-') {
+    if (is(c, WHITESPACE)) {
       advance();
 
-      if (match('-') && match('-')) {
-        addToken(new ScoreToken.RestToken(line, startLinePosition));
-      } else {
-        // TODO This may be false positive
-        //if (!processNote(-1)) throw new ScoreParseException("Invalid note format", line, linePosition);
-      }
-
       return;
     }
 
-    if (Character.isDigit(c)) {
+    if (is(c, DIGIT)) {
       number();
 
       return;
     }
 
-    if (Character.isLetter(c)) {
+    if (is(c, LETTER)) {
       identifier();
 
       return;
@@ -123,19 +340,20 @@ public class ScoreLexer {
 
     position = actualStartPosition;
 
-    while (Character.isLetterOrDigit(peek()) || peek() == '-' || peek() == '#') {
+    while (is(peek(), NOTE_PART)) {
       advance();
     }
 
-    var text = source.substring(actualStartPosition, position);
+    // Decode the note directly from the source, without creating a string
+    final var note = Note.decode(source, actualStartPosition, position);
 
-    if (!ScoreToken.NoteToken.isNote(text)) {
+    if (note == null) {
       position = oldPosition; // roll back
 
       return false;
     }
 
-    addToken(new ScoreToken.NoteToken(text, line, startLinePosition));
+    tokens.addNote(note, actualStartPosition, position - actualStartPosition, line, startLinePosition);
 
     return true;
 
@@ -146,48 +364,73 @@ public class ScoreLexer {
   }
 
   private void identifier() {
-    while (Character.isLetterOrDigit(peek()) || peek() == '-' || peek() == '_') {
+    while (is(peek(), IDENTIFIER_PART)) {
       advance();
     }
 
-    var text = source.substring(startPosition, position);
-
-    if (definitions.containsKey(text)) {
-      final var updatedTokens = definitions.get(text).stream().map(token -> token.withPosition(line, linePosition)).toList();
+    // Keywords are matched over the source without creating a string.
+    // They may be matched before the definitions, since a keyword cannot be defined.
+    final var keyword = ScoreKeywords.match(source, startPosition, position);
 
-      tokens.addAll(updatedTokens);
+    if (keyword != null) {
+      addKeyword(keyword);
 
       return;
     }
 
-    if (ScoreToken.KeywordToken.isKeyword(text)) {
-      addToken(new ScoreToken.KeywordToken(text, line, startLinePosition));
+    if (!definitions.isEmpty()) {
+      final var definition = definitions.get(source.subSequence(startPosition, position).toString());
 
-      return;
+      if (definition != null) {
+        // Refer to the shared definition instead of copying its tokens
+        tokens.addReference(definitionTokens, definition.start, definition.count, line, linePosition);
+
+        return;
+      }
     }
 
     if (processNote())
       return;
 
-    addToken(new ScoreToken.IdentifierToken(text, line, linePosition));
+    tokens.addIdentifier(source.subSequence(startPosition, position).toString(), startPosition, position - startPosition, line, linePosition);
   }
 
   private void number() {
-    while (Character.isDigit(peek())) {
-      advance();
+    // Digits are accumulated while scanning, so that the string is only created when the result might be inexact
+    var mantissa = 0L;
+    var digits = 0;
+    var fractionDigits = 0;
+    var exact = true;
+
+    while (is(peek(), DIGIT)) {
+      exact &= peek() <= '9'; // Other digits than ASCII are left to Double.parseDouble
+      mantissa = mantissa * 10 + (advance() - '0');
+      digits++;
     }
 
     // Process decimal point
-    if (peek() == '.' && Character.isDigit(peekNext())) {
+    if (peek() == '.' && is(peekNext(), DIGIT)) {
       // Consume the '.'
+      advance();
+
       do {
-        advance();
-      } while (Character.isDigit(peek()));
+        exact &= peek() <= '9';
+        mantissa = mantissa * 10 + (advance() - '0');
+        digits++;
+        fractionDigits++;
+      } while (is(peek(), DIGIT));
     }
 
-    var text = source.substring(startPosition, position);
+    final double value;
 
-    addToken(new ScoreToken.NumberToken(text, line, startLinePosition));
+    if (exact && digits <= MAX_EXACT_DIGITS && fractionDigits < POWERS_OF_TEN.length) {
+      // Both operands are exact, so the division is rounded the same way as Double.parseDouble
+      value = mantissa / POWERS_OF_TEN[fractionDigits];
+    } else {
+      value = Double.parseDouble(source.subSequence(startPosition, position).toString());
+    }
+
+    tokens.addNumber(value, startPosition, position - startPosition, line, startLinePosition);
   }
 
   private boolean match(char expected) {
@@ -217,9 +460,9 @@ public class ScoreLexer {
     return source.charAt(position++);
   }
 
-  private void addToken(ScoreToken<?> token) {
+  private void addKeyword(ScoreKeywords keyword) {
     // Process DEFINE keyword
-    if (token instanceof ScoreToken.KeywordToken && token.getLiteral() == ScoreKeywords.DEFINE) {
+    if (keyword == ScoreKeywords.DEFINE) {
       if (depth > 0) {
         throw new ScoreParseException("DEFINE cannot be used in a definition", line + baseLine, linePosition + baseLinePosition);
       }
@@ -229,17 +472,17 @@ public class ScoreLexer {
       return;
     }
 
-    tokens.add(token);
+    tokens.addKeyword(keyword, startPosition, position - startPosition, line, startLinePosition);
   }
 
   private void processDefine() {
     // Get two tokens after the DEFINE keyword
     final List<String> parameters = new ArrayList<>();
 
-    while (parameters.isEmpty() && !isAtEnd()) { // wait for key
+    while (parameters.isEmpty() && hasMoreInput()) { // wait for key
       final var c = peek();
 
-      if (Character.isWhitespace(c)) {
+      if (is(c, WHITESPACE)) {
         advance();
 
         continue;
@@ -257,14 +500,14 @@ public class ScoreLexer {
         continue;
       }
 
-      if (Character.isLetterOrDigit(c) || c == '-' || c == '_') {
+      if (is(c, IDENTIFIER_PART)) {
         final var startPosition = position;
 
-        while (Character.isLetterOrDigit(peek()) || peek() == '-' || peek() == '_') {
+        while (is(peek(), IDENTIFIER_PART)) {
           advance();
         }
 
-        final var text = source.substring(startPosition, position);
+        final var text = source.subSequence(startPosition, position).toString();
 
         parameters.add(text);
 
@@ -274,10 +517,10 @@ public class ScoreLexer {
       throw new ScoreParseException("Unexpected character: " + c, line + baseLine, linePosition + baseLinePosition);
     }
 
-    while (!isAtEnd()) {
+    while (hasMoreInput()) {
       final var c = peek();
 
-      if (Character.isWhitespace(c)) {
+      if (is(c, WHITESPACE)) {
         advance();
 
         continue;
@@ -298,10 +541,10 @@ public class ScoreLexer {
       throw new ScoreParseException("Expected comma after parameter: " + parameters.get(0), line + baseLine, linePosition + baseLinePosition);
     }
 
-    while (parameters.size() < 2 && !isAtEnd()) { // wait for value (allowing other than comma and comment, read until the eol)
+    while (parameters.size() < 2 && hasMoreInput()) { // wait for value (allowing other than comma and comment, read until the eol)
       final var c = peek();
 
-      if (Character.isWhitespace(c)) {
+      if (is(c, WHITESPACE)) {
         advance();
 
         continue;
@@ -319,7 +562,7 @@ public class ScoreLexer {
         advance();
       }
 
-      final var text = source.substring(startPosition, position).trim();
+      final var text = source.subSequence(startPosition, position).toString().trim();
 
       parameters.add(text);
     }
@@ -343,9 +586,13 @@ public class ScoreLexer {
       ScoreLexer subLexer = createSubLexer(value);
       final var subTokens = subLexer.tokenize();
 
-      subTokens.removeIf(t -> t instanceof ScoreToken.EOFToken || t instanceof ScoreToken.NewlineToken);
+      subTokens.trimEnd();
 
-      definitions.put(name, subTokens);
+      final var start = definitionTokens.size();
+
+      definitionTokens.addAll(subTokens);
+
+      definitions.put(name, new Definition(start, subTokens.size()));
     }
   }
 
@@ -359,7 +606,20 @@ public class ScoreLexer {
     }
   }
 
-  public Map<String, List<ScoreToken<?>>> getDefinitions() {
-    return new HashMap<>(definitions);
+  public boolean hasDefinition(String name) {
+    return definitions.containsKey(name);
+  }
+
+  /**
+   * DEFINE で定義されたシンボルの、共有バッファ上のトークン範囲
+   */
+  private static final class Definition {
+    private final int start;
+    private final int count;
+
+    private Definition(int start, int count) {
+      this.start = start;
+      this.count = count;
+    }
   }
 }
@@ -0,0 +1,101 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 字句解析器の処理速度を計測するためのクラス。
+ * 大きな譜面を生成し、構文解析器と同じく一行ずつ字句解析したときの処理量を MB/s で表示する。
+ * "parallel" を指定した場合は、{@link ScoreLexer#tokenizeParallel(List)} で並列に字句解析する。
+ * <p>
+ * 使い方: java ScoreLexerBenchmark [行数] [繰り返し回数] [parallel]
+ */
+final class ScoreLexerBenchmark {
+  private static final int DEFAULT_LINES = 1_000_000;
+  private static final int DEFAULT_ITERATIONS = 10;
+  private static final int WARMUP_ITERATIONS = 3;
+
+  private static final String[] NOTE_NAMES = {"C", "C#", "D", "D-", "E", "F", "F#", "G", "A", "A#", "B"};
+
+  private ScoreLexerBenchmark() {
+  }
+
+  public static void main(String[] args) {
+    final var lineCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_LINES;
+    final var iterations = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+    final var parallel = args.length > 2 && args[2].equals("parallel");
+
+    final var lines = generate(lineCount, new Random(0));
+    final var bytes = lines.stream().mapToLong(line -> line.getBytes(StandardCharsets.UTF_8).length + 1).sum();
+
+    System.out.printf("%d lines, %.2f MB%n", lines.size(), bytes / 1e6);
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      scan(lines, parallel);
+    }
+
+    var best = Long.MAX_VALUE;
+    var total = 0L;
+
+    for (int i = 0; i < iterations; i++) {
+      final var start = System.nanoTime();
+      final var tokens = scan(lines, parallel);
+      final var elapsed = System.nanoTime() - start;
+
+      best = Math.min(best, elapsed);
+      total += elapsed;
+
+      System.out.printf("#%d: %d tokens in %.1f ms (%.1f MB/s)%n", i + 1, tokens, elapsed / 1e6, throughput(bytes, elapsed));
+    }
+
+    System.out.printf("best %.1f MB/s, average %.1f MB/s%n", throughput(bytes, best), throughput(bytes, total / iterations));
+  }
+
+  private static double throughput(long bytes, long nanos) {
+    return bytes / 1e6 / (nanos / 1e9);
+  }
+
+  // Scans the lines one by one as the parser does, or all at once in parallel, and returns the number of tokens
+  private static long scan(List<String> lines, boolean parallel) {
+    if (parallel) return ScoreLexer.tokenizeParallel(lines).size();
+
+    final var lexer = new ScoreLexer(lines.iterator());
+    var count = 0L;
+
+    while (lexer.scanNext()) {
+      count += lexer.getTokens().size();
+    }
+
+    return count;
+  }
+
+  private static List<String> generate(int lineCount, Random random) {
+    final var lines = new ArrayList<String>(lineCount);
+
+    lines.add("DEFINE intro, C4,4,4");
+    lines.add("DEFINE fast, BPM,180");
+    lines.add("120,4,0,440");
+
+    while (lines.size() < lineCount) {
+      final var kind = random.nextInt(20);
+
+      if (kind == 0) {
+        lines.add("BPM," + (60 + random.nextInt(120)) + "." + random.nextInt(10));
+      } else if (kind == 1) {
+        lines.add("VOL," + random.nextInt(100) + " # volume");
+      } else if (kind == 2) {
+        lines.add(random.nextBoolean() ? "intro" : "fast");
+      } else if (kind == 3) {
+        lines.add("---," + (1 << random.nextInt(5)) + ",4");
+      } else {
+        final var note = NOTE_NAMES[random.nextInt(NOTE_NAMES.length)] + (2 + random.nextInt(5));
+
+        lines.add(note + "," + (1 << random.nextInt(5)) + "," + (1 + random.nextInt(4)) + ";");
+      }
+    }
+
+    lines.add("STOP");
+
+    return lines;
+  }
+}
@@ -22,16 +22,17 @@ public class ScoreOscillatorParser {
 
     // parse until end,osc
     while (true) {
-      final var token = context.peek();
+      final var type = context.peek();
 
-      if (token instanceof ScoreToken.NewlineToken) {
+      if (type == ScoreTokenType.NEWLINE) {
         context.consume();
 
         continue;
       }
 
-      if (token instanceof ScoreToken.IdentifierToken) {
-        final var id = token.getLexeme().toLowerCase();
+      if (type == ScoreTokenType.IDENTIFIER) {
+        final var directive = context.peekIdentifier();
+        final var id = directive.toLowerCase();
 
         switch (id) {
           case "waveform": {
@@ -110,15 +111,15 @@ public class ScoreOscillatorParser {
 
           default:
             throw new ScoreParseException(
-                "Directive not allowed in osc block: " + token.getLexeme(),
-                token.getLineNumber(), token.getPosition());
+                "Directive not allowed in osc block: " + directive,
+                context.peekLineNumber(), context.peekPosition());
         }
 
         continue;
       }
 
-      if (token instanceof ScoreToken.KeywordToken) {
-        final var keyword = ((ScoreToken.KeywordToken) token).getLiteral();
+      if (type == ScoreTokenType.KEYWORD) {
+        final var keyword = context.peekKeyword();
 
         if (keyword.getLiteral().equalsIgnoreCase(ScoreKeywords.END.getLiteral())) {
           context.consume();
@@ -148,14 +149,14 @@ public class ScoreOscillatorParser {
         } else {
           throw new ScoreParseException(
               "Unexpected keyword inside osc block: " + keyword,
-              token.getLineNumber(), token.getPosition());
+              context.peekLineNumber(), context.peekPosition());
         }
       }
 
       // Any other token is invalid inside osc block
       throw new ScoreParseException(
-          "Unexpected token inside osc block: " + token.getClass().getSimpleName(),
-          token.getLineNumber(), token.getPosition());
+          "Unexpected token inside osc block: " + type.getDisplayName(),
+          context.peekLineNumber(), context.peekPosition());
     }
   }
 }
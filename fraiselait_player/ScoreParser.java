@@ -3,12 +3,19 @@ import java.util.List;
 public class ScoreParser {
   private final ScoreParserContext context;
 
-  public ScoreParser(List<ScoreToken<?>> tokens) {
+  public ScoreParser(ScoreTokenBuffer tokens) {
     this.context = new ScoreParserContext(tokens);
   }
 
+  /**
+   * 字句解析器からトークンを逐次的に受け取りながら構文解析を行う。
+   */
+  public ScoreParser(ScoreLexer lexer) {
+    this.context = new ScoreParserContext(lexer);
+  }
+
   public List<ScoreCommand> parse() {
-    while (!(context.peek() instanceof ScoreToken.EOFToken)) {
+    while (context.peek() != ScoreTokenType.EOF) {
       parseCommand();
     }
 
@@ -26,9 +33,9 @@ public class ScoreParser {
   }
 
   private void parseCommand() {
-    final var token = context.peek();
+    final var type = context.peek();
 
-    if (token instanceof ScoreToken.NewlineToken) {
+    if (type == ScoreTokenType.NEWLINE) {
       context.consume();
 
       return;
@@ -41,12 +48,12 @@ public class ScoreParser {
       return;
     }
 
-    if (token instanceof ScoreToken.KeywordToken) {
-      final var keyword = ((ScoreToken.KeywordToken) token).getLiteral();
+    if (type == ScoreTokenType.KEYWORD) {
+      final var keyword = context.peekKeyword();
 
       switch (keyword) {
         case DEFINE:
-          throw new ScoreParseException("BUG: DEFINE keyword should be pre-processed in ScoreLexer", token.getLineNumber(), token.getPosition());
+          throw new ScoreParseException("BUG: DEFINE keyword should be pre-processed in ScoreLexer", context.peekLineNumber(), context.peekPosition());
 
         case STOP:
           ScoreCommand.Stop.parse(context);
@@ -94,24 +101,24 @@ public class ScoreParser {
           break;
 
         default:
-          throw new ScoreParseException("Unexpected keyword: " + keyword, token.getLineNumber(), token.getPosition());
+          throw new ScoreParseException("Unexpected keyword: " + keyword, context.peekLineNumber(), context.peekPosition());
       }
 
       return;
     }
 
-    if (token instanceof ScoreToken.RestToken) {
+    if (type == ScoreTokenType.REST) {
       ScoreCommand.Rest.parse(context);
 
       return;
     }
 
-    if (token instanceof ScoreToken.NoteToken || token instanceof ScoreToken.NumberToken) {
+    if (type == ScoreTokenType.NOTE || type == ScoreTokenType.NUMBER) {
       ScoreCommand.PlayNote.parse(context);
 
       return;
     }
 
-    throw new ScoreParseException("Unexpected token: " + token.getClass().getSimpleName(), token.getLineNumber(), token.getPosition());
+    throw new ScoreParseException("Unexpected token: " + type.getDisplayName(), context.peekLineNumber(), context.peekPosition());
   }
 }
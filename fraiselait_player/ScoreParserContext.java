@@ -8,12 +8,10 @@ import java.util.Map;
 public class ScoreParserContext {
   private static final Oscillator DEFAULT_OSCILLATOR = Oscillator.createConstantVolumeOscillator("default", WaveformType.SQUARE, 1);
 
-  private final List<ScoreToken<?>> tokens;
+  private final ScoreTokenReader tokens;
   private final Map<String, String> definitions = new HashMap<>();
   private final List<ScoreCommand> commands = new ArrayList<>();
 
-  private int position;
-
   private ScoreCommand.Header header;
 
   private boolean isFinished = false;
@@ -22,46 +20,82 @@ public class ScoreParserContext {
   private final Map<String, Oscillator> oscillatorsByName = new HashMap<>();
   private final List<Oscillator> oscillators = new ArrayList<>();
 
-  public ScoreParserContext(List<ScoreToken<?>> tokens) {
-    this.tokens = tokens;
-    this.position = 0;
+  /**
+   * 字句解析済みのトークンから構文解析を行う。
+   */
+  public ScoreParserContext(ScoreTokenBuffer tokens) {
+    this.tokens = new ScoreTokenReader(tokens);
 
     // Add default oscillator
     addOscillator(DEFAULT_OSCILLATOR);
   }
 
-  public ScoreToken<?> peek() {
-    if (position >= tokens.size())
-      return tokens.get(tokens.size() - 1); // EOF
+  /**
+   * 字句解析器からトークンを一行ずつ受け取りながら構文解析を行う。
+   */
+  public ScoreParserContext(ScoreLexer lexer) {
+    this.tokens = new ScoreTokenReader(lexer);
 
-    return tokens.get(position);
+    // Add default oscillator
+    addOscillator(DEFAULT_OSCILLATOR);
   }
 
-  public ScoreToken<?> consume() {
-    ScoreToken<?> token = peek();
+  private void advance() {
+    tokens.advance();
+  }
 
-    position++;
+  public ScoreTokenType peek() {
+    return tokens.getType();
+  }
 
-    return token;
+  /**
+   * 現在のトークンをオブジェクトとして取得する。エラー報告など、字句の内容が必要な場合にのみ使用する。
+   */
+  public ScoreToken<?> peekToken() {
+    return tokens.get();
+  }
+
+  public ScoreKeywords peekKeyword() {
+    return tokens.getKeyword();
   }
 
-  public <T extends ScoreToken<?>> T expect(Class<T> tokenClass) {
-    ScoreToken<?> token = peek();
+  public String peekIdentifier() {
+    return tokens.getIdentifier();
+  }
 
-    if (!tokenClass.isInstance(token)) {
+  public int peekLineNumber() {
+    return tokens.getLineNumber();
+  }
+
+  public int peekPosition() {
+    return tokens.getPosition();
+  }
+
+  public void consume() {
+    advance();
+  }
+
+  private void check(ScoreTokenType type) {
+    final var actual = peek();
+
+    if (actual != type) {
       throw new ScoreParseException(
           "Expected %s but got %s".formatted(
-              tokenClass.getSimpleName(), token.getClass().getSimpleName()
-          ), token.getLineNumber(), token.getPosition());
+              type.getDisplayName(), actual.getDisplayName()
+          ), peekLineNumber(), peekPosition());
     }
+  }
 
-    position++;
+  public void expect(ScoreTokenType type) {
+    check(type);
 
-    return tokenClass.cast(token);
+    advance();
   }
 
   public ScoreToken.KeywordToken expectKeyword(String keyword) {
-    ScoreToken.KeywordToken token = expect(ScoreToken.KeywordToken.class);
+    check(ScoreTokenType.KEYWORD);
+
+    final var token = (ScoreToken.KeywordToken) peekToken();
 
     if (!token.getLexeme().equalsIgnoreCase(keyword)) {
       throw new ScoreParseException(
@@ -70,11 +104,13 @@ public class ScoreParserContext {
           ), token.getLineNumber(), token.getPosition());
     }
 
+    advance();
+
     return token;
   }
 
   public ScoreToken.IdentifierToken expectIdentifier(String name) {
-    ScoreToken.IdentifierToken token = expect(ScoreToken.IdentifierToken.class);
+    final var token = expectAnyIdentifier();
 
     if (!token.getLexeme().equalsIgnoreCase(name)) {
       throw new ScoreParseException(
@@ -87,65 +123,76 @@ public class ScoreParserContext {
   }
 
   public ScoreToken.IdentifierToken expectAnyIdentifier() {
-    return expect(ScoreToken.IdentifierToken.class);
+    check(ScoreTokenType.IDENTIFIER);
+
+    final var token = (ScoreToken.IdentifierToken) peekToken();
+
+    advance();
+
+    return token;
   }
 
   public ScoreToken.NumberToken expectNumber() {
-    return expect(ScoreToken.NumberToken.class);
+    check(ScoreTokenType.NUMBER);
+
+    final var token = (ScoreToken.NumberToken) peekToken();
+
+    advance();
+
+    return token;
   }
 
-  public ScoreToken.CommaToken expectComma() {
-    return expect(ScoreToken.CommaToken.class);
+  public void expectComma() {
+    expect(ScoreTokenType.COMMA);
   }
 
   public void expectEndOfCommand() {
-    ScoreToken<?> token = peek();
+    final var type = peek();
 
-    if (!(token instanceof ScoreToken.SemicolonToken) &&
-        !(token instanceof ScoreToken.NewlineToken) && !(token instanceof ScoreToken.EOFToken)) {
+    if (type != ScoreTokenType.SEMICOLON && type != ScoreTokenType.NEWLINE && type != ScoreTokenType.EOF) {
       throw new ScoreParseException(
           "Expected semicolon, newline, or EOF but got %s".formatted(
-              token.getClass().getSimpleName()
-          ), token.getLineNumber(), token.getPosition());
+              type.getDisplayName()
+          ), peekLineNumber(), peekPosition());
     }
 
-    position++;
+    advance();
   }
 
   public void expectNewLineOrEOF() {
-    ScoreToken<?> token = peek();
+    final var type = peek();
 
-    if (!(token instanceof ScoreToken.NewlineToken) && !(token instanceof ScoreToken.EOFToken)) {
+    if (type != ScoreTokenType.NEWLINE && type != ScoreTokenType.EOF) {
       throw new ScoreParseException(
           "Expected newline or EOF but got %s".formatted(
-              token.getClass().getSimpleName()
-          ), token.getLineNumber(), token.getPosition());
+              type.getDisplayName()
+          ), peekLineNumber(), peekPosition());
     }
 
-    position++;
+    advance();
   }
 
   public ScoreToken.FrequencyToken expectNoteOrFrequency() {
-    ScoreToken<?> token = peek();
+    final var type = peek();
 
-    if (!(token instanceof ScoreToken.NoteToken) && !(token instanceof ScoreToken.NumberToken)) {
+    if (type != ScoreTokenType.NOTE && type != ScoreTokenType.NUMBER) {
       throw new ScoreParseException(
           "Expected note or frequency but got %s".formatted(
-              token.getClass().getSimpleName()
-          ), token.getLineNumber(), token.getPosition());
+              type.getDisplayName()
+          ), peekLineNumber(), peekPosition());
     }
 
-    position++;
+    final var token = type == ScoreTokenType.NOTE
+        ? new ScoreToken.FrequencyToken(tokens.getNote(), peekLineNumber(), peekPosition())
+        : new ScoreToken.FrequencyToken(tokens.getNumber(), peekLineNumber(), peekPosition());
 
-    if (token instanceof ScoreToken.NoteToken) {
-      return new ScoreToken.FrequencyToken((ScoreToken.NoteToken) token);
-    } else {
-      return new ScoreToken.FrequencyToken((ScoreToken.NumberToken) token);
-    }
+    advance();
+
+    return token;
   }
 
   public boolean hasComma() {
-    return peek() instanceof ScoreToken.CommaToken;
+    return peek() == ScoreTokenType.COMMA;
   }
 
   public void addHeader(ScoreCommand.Header header) {
@@ -1,5 +1,4 @@
 import java.util.Arrays;
-import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -29,6 +28,13 @@ enum ScoreKeywords {
   public static final Set<String> LITERALS =
       Arrays.stream(ScoreKeywords.values()).map(ScoreKeywords::getLiteral).collect(Collectors.toUnmodifiableSet());
 
+  // Perfect hash table of the literals, indexed by hash(); the multiplier is searched when the class is loaded
+  private static final int TABLE_BITS = 4;
+  private static final ScoreKeywords[] TABLE = new ScoreKeywords[1 << TABLE_BITS];
+  private static final int MULTIPLIER = findMultiplier();
+  private static final int MIN_LENGTH = LITERALS.stream().mapToInt(String::length).min().orElseThrow();
+  private static final int MAX_LENGTH = LITERALS.stream().mapToInt(String::length).max().orElseThrow();
+
   private final String literal;
 
   ScoreKeywords(String value) {
@@ -39,27 +45,113 @@ enum ScoreKeywords {
     return LITERALS.contains(value);
   }
 
+  /**
+   * 文字列の範囲を、大文字と小文字を区別せずにキーワードとして照合する。
+   * 一時的な文字列は作成せず、完全ハッシュ表で候補を一つに絞ってから比較する。
+   *
+   * @return キーワードではない場合は null
+   */
+  public static ScoreKeywords match(CharSequence text, int start, int end) {
+    final var length = end - start;
+
+    if (length < MIN_LENGTH || length > MAX_LENGTH) return null;
+
+    final var keyword = TABLE[hash(toUpperCase(text.charAt(start)), toUpperCase(text.charAt(end - 1)), length, MULTIPLIER)];
+
+    if (keyword == null || keyword.literal.length() != length) return null;
+
+    for (int i = 0; i < length; i++) {
+      if (toUpperCase(text.charAt(start + i)) != keyword.literal.charAt(i)) return null;
+    }
+
+    return keyword;
+  }
+
+  private static int hash(char first, char last, int length, int multiplier) {
+    return ((first << 16 | last << 4 | length) * multiplier) >>> (Integer.SIZE - TABLE_BITS);
+  }
+
+  private static int findMultiplier() {
+    for (int multiplier = 1; multiplier < Integer.MAX_VALUE; multiplier += 2) {
+      Arrays.fill(TABLE, null);
+
+      var collided = false;
+
+      for (final var keyword : values()) {
+        final var literal = keyword.literal;
+        final var index = hash(literal.charAt(0), literal.charAt(literal.length() - 1), literal.length(), multiplier);
+
+        if (TABLE[index] != null) {
+          collided = true;
+
+          break;
+        }
+
+        TABLE[index] = keyword;
+      }
+
+      if (!collided) return multiplier;
+    }
+
+    throw new IllegalStateException("No perfect hash for keywords");
+  }
+
+  private static char toUpperCase(char c) {
+    if (c >= 'a' && c <= 'z') return (char) (c - ('a' - 'A'));
+    if (c < 0x80) return c;
+
+    return Character.toUpperCase(c);
+  }
+
   public String getLiteral() {
     return literal;
   }
 }
 
+enum ScoreTokenType {
+  KEYWORD("KeywordToken"),
+  NOTE("NoteToken"),
+  NUMBER("NumberToken"),
+  REST("RestToken"),
+  IDENTIFIER("IdentifierToken"),
+  COMMA("CommaToken"),
+  SEMICOLON("SemicolonToken"),
+  NEWLINE("NewlineToken"),
+  EOF("EOFToken"),
+
+  // Expansion of a DEFINE'd symbol, resolved by ScoreTokenReader
+  REFERENCE("ReferenceToken");
+
+  private static final ScoreTokenType[] VALUES = values();
+
+  private final String displayName;
+
+  ScoreTokenType(String displayName) {
+    this.displayName = displayName;
+  }
+
+  static ScoreTokenType fromOrdinal(int ordinal) {
+    return VALUES[ordinal];
+  }
+
+  public String getDisplayName() {
+    return displayName;
+  }
+}
+
+/**
+ * 構文解析器に渡されるトークン。
+ * 字句解析の結果は {@link ScoreTokenBuffer} に保持され、このクラスのインスタンスは構文解析器が値を取り出すときにのみ作成される。
+ */
 public abstract class ScoreToken<T> {
   private final String lexeme;
-  private final Lazy<T> literal;
-  private int lineNumber;
-  private int position;
+  private final T literal;
+  private final int lineNumber;
+  private final int position;
 
   protected ScoreToken(String lexeme, T literal, int lineNumber, int position) {
     this.lexeme = lexeme;
-    this.literal = new Lazy<>(literal);
-    this.lineNumber = lineNumber;
-    this.position = position;
-  }
-
-  protected ScoreToken(String lexeme, int lineNumber, int position) {
-    this.lexeme = lexeme;
-    this.literal = new Lazy<>();
+    this.literal = literal;
     this.lineNumber = lineNumber;
     this.position = position;
   }
@@ -69,7 +161,7 @@ public abstract class ScoreToken<T> {
   }
 
   public T getLiteral() {
-    return literal.get();
+    return literal;
   }
 
   public int getLineNumber() {
@@ -80,75 +172,39 @@ public abstract class ScoreToken<T> {
     return position;
   }
 
-  public ScoreToken<T> withPosition(int lineNumber, int position) {
-    this.lineNumber = lineNumber;
-    this.position = position;
-
-    return this;
-  }
-
   @Override
   public String toString() {
     return String.format("%s(%s at %d:%d)", getClass().getSimpleName(), lexeme, lineNumber, position);
   }
 
   public static class KeywordToken extends ScoreToken<ScoreKeywords> {
-    public KeywordToken(String value, int lineNumber, int position) {
-      super(value.toUpperCase(), lineNumber, position);
-
-      if (!ScoreKeywords.LITERALS.contains(value.toUpperCase())) {
-        throw new ScoreParseException("Invalid keyword: " + value, lineNumber, position);
-      }
-
-      super.literal.trySet(ScoreKeywords.valueOf(value.toUpperCase()));
+    public KeywordToken(ScoreKeywords keyword, int lineNumber, int position) {
+      super(keyword.getLiteral(), keyword, lineNumber, position);
     }
 
     public static boolean isKeyword(String value) {
-      return ScoreKeywords.isKeyword(value.toUpperCase());
+      return ScoreKeywords.match(value, 0, value.length()) != null;
     }
   }
 
   public static class NoteToken extends ScoreToken<Note> {
-    public NoteToken(String value, int lineNumber, int position) {
-      super(value, lineNumber, position);
-
-      if (!isNote(value)) {
-        throw new ScoreParseException("Invalid note format: " + value, lineNumber, position);
-      }
-
-      super.literal.trySet(Note.parse(value));
+    public NoteToken(Note note, int lineNumber, int position) {
+      super(note.toString(), note, lineNumber, position);
     }
 
     public static boolean isNote(String value) {
-      return Note.NOTE_PATTERN.matcher(value).matches();
+      return Note.isNote(value);
     }
   }
 
   public static class NumberToken extends ScoreToken<Number> {
-    public NumberToken(String value, int lineNumber, int position) {
-      super(value, lineNumber, position);
-
-      if (!isNumber(value)) {
-        throw new ScoreParseException("Invalid number format: " + value, lineNumber, position);
-      }
-
-      // parse double to Number
-      super.literal.trySet(Double.parseDouble(value));
-    }
-
-    public static boolean isNumber(String value) {
-      try {
-        Double.parseDouble(value);
-
-        return true;
-      } catch (NumberFormatException e) {
-        return false;
-      }
+    public NumberToken(double value, int lineNumber, int position) {
+      super(Double.toString(value), value, lineNumber, position);
     }
   }
 
   public static class RestToken extends ScoreToken<Void> {
-    private static final String REST_SYMBOL = "---";
+    static final String REST_SYMBOL = "---";
 
     public RestToken(int lineNumber, int position) {
       super(REST_SYMBOL, null, lineNumber, position);
@@ -164,10 +220,6 @@ public abstract class ScoreToken<T> {
 
     public IdentifierToken(String value, int lineNumber, int position) {
       super(value, null, lineNumber, position);
-
-      if (!IDENTIFIER_PATTERN.matcher(value).matches()) {
-        throw new ScoreParseException("Invalid identifier format: " + value, lineNumber, position);
-      }
     }
 
     public static boolean isIdentifier(String value) {
@@ -176,42 +228,38 @@ public abstract class ScoreToken<T> {
   }
 
   public static class CommaToken extends ScoreToken<Void> {
-    private static final String COMMA_SYMBOL = ",";
+    static final char COMMA_SYMBOL = ',';
 
     public CommaToken(int lineNumber, int position) {
-      super(COMMA_SYMBOL, null, lineNumber, position);
+      super(String.valueOf(COMMA_SYMBOL), null, lineNumber, position);
     }
 
-    public static boolean isComma(String value) {
-      return COMMA_SYMBOL.equals(value);
+    public static boolean isComma(char value) {
+      return COMMA_SYMBOL == value;
     }
   }
 
   public static class SemicolonToken extends ScoreToken<Void> {
-    private static final String SEMICOLON_SYMBOL = ";";
+    static final char SEMICOLON_SYMBOL = ';';
 
     public SemicolonToken(int lineNumber, int position) {
-      super(SEMICOLON_SYMBOL, null, lineNumber, position);
+      super(String.valueOf(SEMICOLON_SYMBOL), null, lineNumber, position);
     }
 
-    public static boolean isSemicolon(String value) {
-      return SEMICOLON_SYMBOL.equals(value);
+    public static boolean isSemicolon(char value) {
+      return SEMICOLON_SYMBOL == value;
     }
   }
 
   public static class NewlineToken extends ScoreToken<Void> {
-    private static final List<String> NEWLINE_SYMBOLS = List.of("\n");
+    static final char NEWLINE_SYMBOL = '\n';
 
-    public NewlineToken(String value, int lineNumber) {
-      super(value, null, lineNumber, 0);
-
-      if (!isNewline(value)) {
-        throw new ScoreParseException("Invalid newline symbol: " + value, lineNumber, 0);
-      }
+    public NewlineToken(int lineNumber) {
+      super(String.valueOf(NEWLINE_SYMBOL), null, lineNumber, 0);
     }
 
-    public static boolean isNewline(String value) {
-      return NEWLINE_SYMBOLS.contains(value);
+    public static boolean isNewline(char value) {
+      return NEWLINE_SYMBOL == value;
     }
   }
 
@@ -224,16 +272,12 @@ public abstract class ScoreToken<T> {
   // Special Token: not created by lexer but by parser context
 
   public static class FrequencyToken extends ScoreToken<Frequency> {
-    private FrequencyToken(String value, Frequency freq, int lineNumber, int position) {
-      super(value, freq, lineNumber, position);
-    }
-
-    public FrequencyToken(NoteToken noteToken) {
-      this(noteToken.getLexeme(), new Frequency.NoteFrequency(noteToken.getLiteral()), noteToken.getLineNumber(), noteToken.getPosition());
+    public FrequencyToken(Note note, int lineNumber, int position) {
+      super(note.toString(), new Frequency.NoteFrequency(note), lineNumber, position);
     }
 
-    public FrequencyToken(NumberToken numberToken) {
-      this(numberToken.getLexeme(), new Frequency.RawFrequency(numberToken.getLiteral().doubleValue()), numberToken.getLineNumber(), numberToken.getPosition());
+    public FrequencyToken(double frequency, int lineNumber, int position) {
+      super(Double.toString(frequency), new Frequency.RawFrequency(frequency), lineNumber, position);
     }
   }
 }
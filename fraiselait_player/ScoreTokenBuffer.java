@@ -0,0 +1,195 @@
+import java.util.Arrays;
+
+/**
+ * 字句解析の結果を列指向で保持するバッファ。
+ * トークン毎にオブジェクトを作らず、種類・位置を並列の配列に、数値・音符などのリテラルを別表に格納する。
+ * 単一スレッドでの使用を前提としている。
+ */
+class ScoreTokenBuffer {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private int[] types = new int[INITIAL_CAPACITY];
+  private int[] starts = new int[INITIAL_CAPACITY];
+  private int[] lengths = new int[INITIAL_CAPACITY];
+  private int[] lines = new int[INITIAL_CAPACITY];
+  private int[] positions = new int[INITIAL_CAPACITY];
+
+  // Literal side tables: numbers for NUMBER tokens; keywords, notes, identifier names and referenced buffers for the others
+  private double[] numbers = new double[INITIAL_CAPACITY];
+  private Object[] literals = new Object[INITIAL_CAPACITY];
+
+  private int size = 0;
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    // Drop references so that the side table does not keep old literals alive
+    Arrays.fill(literals, 0, size, null);
+
+    size = 0;
+  }
+
+  public void add(ScoreTokenType type, int start, int length, int line, int position) {
+    add(type, start, length, line, position, 0.0, null);
+  }
+
+  public void addNumber(double value, int start, int length, int line, int position) {
+    add(ScoreTokenType.NUMBER, start, length, line, position, value, null);
+  }
+
+  public void addKeyword(ScoreKeywords keyword, int start, int length, int line, int position) {
+    add(ScoreTokenType.KEYWORD, start, length, line, position, 0.0, keyword);
+  }
+
+  public void addNote(Note note, int start, int length, int line, int position) {
+    add(ScoreTokenType.NOTE, start, length, line, position, 0.0, note);
+  }
+
+  public void addIdentifier(String name, int start, int length, int line, int position) {
+    add(ScoreTokenType.IDENTIFIER, start, length, line, position, 0.0, name);
+  }
+
+  /**
+   * 他のバッファの範囲を参照するトークンを追加する。
+   * 参照トークンでは、開始位置と長さの列に参照先の範囲 (トークンの番号と個数) を格納する。
+   */
+  public void addReference(ScoreTokenBuffer target, int targetStart, int targetCount, int line, int position) {
+    add(ScoreTokenType.REFERENCE, targetStart, targetCount, line, position, 0.0, target);
+  }
+
+  /**
+   * 他のバッファのトークンをすべて追加する。
+   */
+  public void addAll(ScoreTokenBuffer other) {
+    for (int i = 0; i < other.size; i++) {
+      add(other.getType(i), other.starts[i], other.lengths[i], other.lines[i], other.positions[i], other.numbers[i], other.literals[i]);
+    }
+  }
+
+  private void add(ScoreTokenType type, int start, int length, int line, int position, double number, Object literal) {
+    if (size == types.length) grow();
+
+    types[size] = type.ordinal();
+    starts[size] = start;
+    lengths[size] = length;
+    lines[size] = line;
+    positions[size] = position;
+    numbers[size] = number;
+    literals[size] = literal;
+
+    size++;
+  }
+
+  private void grow() {
+    final var capacity = types.length * 2;
+
+    types = Arrays.copyOf(types, capacity);
+    starts = Arrays.copyOf(starts, capacity);
+    lengths = Arrays.copyOf(lengths, capacity);
+    lines = Arrays.copyOf(lines, capacity);
+    positions = Arrays.copyOf(positions, capacity);
+    numbers = Arrays.copyOf(numbers, capacity);
+    literals = Arrays.copyOf(literals, capacity);
+  }
+
+  /**
+   * 末尾の改行・EOF トークンを取り除く。
+   */
+  public void trimEnd() {
+    while (size > 0 && (getType(size - 1) == ScoreTokenType.NEWLINE || getType(size - 1) == ScoreTokenType.EOF)) {
+      size--;
+
+      literals[size] = null;
+    }
+  }
+
+  public ScoreTokenType getType(int index) {
+    return ScoreTokenType.fromOrdinal(types[index]);
+  }
+
+  public int getStart(int index) {
+    return starts[index];
+  }
+
+  public int getLength(int index) {
+    return lengths[index];
+  }
+
+  public int getLineNumber(int index) {
+    return lines[index];
+  }
+
+  public int getPosition(int index) {
+    return positions[index];
+  }
+
+  public double getNumber(int index) {
+    return numbers[index];
+  }
+
+  public ScoreKeywords getKeyword(int index) {
+    return getType(index) == ScoreTokenType.KEYWORD ? (ScoreKeywords) literals[index] : null;
+  }
+
+  public Note getNote(int index) {
+    return getType(index) == ScoreTokenType.NOTE ? (Note) literals[index] : null;
+  }
+
+  public String getIdentifier(int index) {
+    return getType(index) == ScoreTokenType.IDENTIFIER ? (String) literals[index] : null;
+  }
+
+  public ScoreTokenBuffer getReference(int index) {
+    return getType(index) == ScoreTokenType.REFERENCE ? (ScoreTokenBuffer) literals[index] : null;
+  }
+
+  /**
+   * トークンをオブジェクトとして取り出す。構文解析器が値を保持する必要がある場合にのみ使用する。
+   */
+  public ScoreToken<?> get(int index) {
+    return get(index, lines[index], positions[index]);
+  }
+
+  /**
+   * トークンを位置を置き換えてオブジェクトとして取り出す。
+   */
+  public ScoreToken<?> get(int index, int line, int position) {
+    switch (getType(index)) {
+      case KEYWORD:
+        return new ScoreToken.KeywordToken((ScoreKeywords) literals[index], line, position);
+
+      case NOTE:
+        return new ScoreToken.NoteToken((Note) literals[index], line, position);
+
+      case NUMBER:
+        return new ScoreToken.NumberToken(numbers[index], line, position);
+
+      case REST:
+        return new ScoreToken.RestToken(line, position);
+
+      case IDENTIFIER:
+        return new ScoreToken.IdentifierToken((String) literals[index], line, position);
+
+      case COMMA:
+        return new ScoreToken.CommaToken(line, position);
+
+      case SEMICOLON:
+        return new ScoreToken.SemicolonToken(line, position);
+
+      case NEWLINE:
+        return new ScoreToken.NewlineToken(line);
+
+      case EOF:
+        return new ScoreToken.EOFToken(line, position);
+
+      default:
+        throw new IllegalStateException("Reference tokens must be resolved before use");
+    }
+  }
+}
@@ -0,0 +1,152 @@
+import java.util.Arrays;
+
+/**
+ * {@link ScoreTokenBuffer} を先頭から順に読み進めるカーソル。
+ * DEFINE の展開 (参照トークン) は共有された定義の範囲を辿って読み、呼び出し位置をトークンの位置として返す。
+ * 字句解析器が与えられた場合は、バッファを読み終える度に次の行を字句解析させる。
+ */
+class ScoreTokenReader {
+  private static final int INITIAL_DEPTH = 4;
+
+  private final ScoreLexer lexer;
+  private final ScoreTokenBuffer root;
+
+  private ScoreTokenBuffer buffer;
+  private int index;
+  private int end;
+
+  // Expansion frames: the buffer, index of the reference token and end of the range to return to
+  private ScoreTokenBuffer[] frameBuffers = new ScoreTokenBuffer[INITIAL_DEPTH];
+  private int[] frameIndices = new int[INITIAL_DEPTH];
+  private int[] frameEnds = new int[INITIAL_DEPTH];
+  private int depth = 0;
+
+  // Call site of the outermost expansion
+  private int callLine;
+  private int callPosition;
+
+  ScoreTokenReader(ScoreTokenBuffer tokens) {
+    this(null, tokens);
+  }
+
+  ScoreTokenReader(ScoreLexer lexer) {
+    this(lexer, lexer.getTokens());
+  }
+
+  private ScoreTokenReader(ScoreLexer lexer, ScoreTokenBuffer tokens) {
+    this.lexer = lexer;
+    this.root = tokens;
+    this.buffer = tokens;
+    this.index = 0;
+
+    resolve();
+  }
+
+  public ScoreTokenType getType() {
+    return buffer.getType(index);
+  }
+
+  public int getLineNumber() {
+    return depth > 0 ? callLine : buffer.getLineNumber(index);
+  }
+
+  public int getPosition() {
+    return depth > 0 ? callPosition : buffer.getPosition(index);
+  }
+
+  public double getNumber() {
+    return buffer.getNumber(index);
+  }
+
+  public ScoreKeywords getKeyword() {
+    return buffer.getKeyword(index);
+  }
+
+  public Note getNote() {
+    return buffer.getNote(index);
+  }
+
+  public String getIdentifier() {
+    return buffer.getIdentifier(index);
+  }
+
+  /**
+   * 現在のトークンをオブジェクトとして取り出す。
+   */
+  public ScoreToken<?> get() {
+    return buffer.get(index, getLineNumber(), getPosition());
+  }
+
+  public void advance() {
+    if (depth == 0 && buffer.getType(index) == ScoreTokenType.EOF) return;
+
+    index++;
+
+    resolve();
+  }
+
+  // Moves the cursor onto the next non-reference token, entering and leaving expansions as needed
+  private void resolve() {
+    while (true) {
+      if (depth > 0) {
+        if (index >= end) {
+          depth--;
+
+          buffer = frameBuffers[depth];
+          index = frameIndices[depth] + 1;
+          end = frameEnds[depth];
+
+          frameBuffers[depth] = null;
+
+          continue;
+        }
+      } else if (index >= root.size()) {
+        if (lexer != null && !lexer.isFinished()) {
+          lexer.scanNext();
+
+          index = 0;
+
+          continue;
+        }
+
+        index = root.size() - 1; // Stay on EOF
+
+        return;
+      }
+
+      if (buffer.getType(index) != ScoreTokenType.REFERENCE) return;
+
+      enter();
+    }
+  }
+
+  private void enter() {
+    if (depth == frameBuffers.length) grow();
+
+    if (depth == 0) {
+      callLine = buffer.getLineNumber(index);
+      callPosition = buffer.getPosition(index);
+    }
+
+    final var target = buffer.getReference(index);
+    final var start = buffer.getStart(index);
+    final var count = buffer.getLength(index);
+
+    frameBuffers[depth] = buffer;
+    frameIndices[depth] = index;
+    frameEnds[depth] = end;
+    depth++;
+
+    buffer = target;
+    index = start;
+    end = start + count;
+  }
+
+  private void grow() {
+    final var capacity = frameBuffers.length * 2;
+
+    frameBuffers = Arrays.copyOf(frameBuffers, capacity);
+    frameIndices = Arrays.copyOf(frameIndices, capacity);
+    frameEnds = Arrays.copyOf(frameEnds, capacity);
+  }
+}
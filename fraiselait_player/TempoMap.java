@@ -0,0 +1,113 @@
+import java.util.Arrays;
+
+/**
+ * パートの再生データから作成する、時刻とコマンドの対応表。
+ * BPM が変わる時刻で区切った区間ごとに小節の長さを持ち、各コマンドについて最初に再生されるイベントの番号を持つ。
+ * 時刻からは区間を二分探索して小節の区切りを、コマンドからは表を参照して最初のイベントを求められる。途中からの再生や、小節の区切りでの差し替えに使う。
+ */
+final class TempoMap {
+  // Segments of constant BPM: start offset in nanoseconds and length of a bar in nanoseconds
+  private final long[] segmentOffsets;
+  private final double[] barLengths;
+
+  // Index of the first event played at or after each command, or the number of events if none is
+  private final int[] commandEvents;
+
+  private TempoMap(long[] segmentOffsets, double[] barLengths, int[] commandEvents) {
+    this.segmentOffsets = segmentOffsets;
+    this.barLengths = barLengths;
+    this.commandEvents = commandEvents;
+  }
+
+  /**
+   * 再生データから対応表を作成する。
+   *
+   * @param timeline     パートの再生データ
+   * @param commandCount 譜面のコマンド数
+   */
+  static TempoMap of(PlaybackTimeline timeline, int commandCount) {
+    final var size = timeline.size();
+
+    var segmentOffsets = new long[8];
+    var barLengths = new double[8];
+    var segmentCount = 0;
+    var bpm = Float.NaN;
+
+    final var commandEvents = new int[commandCount];
+
+    Arrays.fill(commandEvents, size);
+
+    for (int i = size - 1; i >= 0 && commandCount > 0; i--) {
+      commandEvents[Math.min(timeline.getPlaybackData(i).getIndex(), commandCount - 1)] = i;
+    }
+
+    // Commands without events start at the next event
+    for (int i = commandCount - 2; i >= 0; i--) {
+      commandEvents[i] = Math.min(commandEvents[i], commandEvents[i + 1]);
+    }
+
+    for (int i = 0; i < size; i++) {
+      final var data = timeline.getPlaybackData(i);
+
+      if (data.getBPM() == bpm) continue;
+
+      if (segmentCount == segmentOffsets.length) {
+        segmentOffsets = Arrays.copyOf(segmentOffsets, segmentCount * 2);
+        barLengths = Arrays.copyOf(barLengths, segmentCount * 2);
+      }
+
+      bpm = data.getBPM();
+
+      segmentOffsets[segmentCount] = segmentCount > 0 ? Math.max(timeline.getOffset(i), segmentOffsets[segmentCount - 1]) : 0;
+      barLengths[segmentCount] = Notes.toDurationMillis(bpm, 1) * 1_000_000;
+      segmentCount++;
+    }
+
+    return new TempoMap(Arrays.copyOf(segmentOffsets, segmentCount), Arrays.copyOf(barLengths, segmentCount), commandEvents);
+  }
+
+  /**
+   * 指定したコマンド以降で最初に再生されるイベントの番号を取得する。
+   *
+   * @return 該当するイベントがない場合はイベントの数
+   */
+  int eventOfCommand(int commandIndex) {
+    if (commandIndex < 0 || commandIndex >= commandEvents.length) {
+      throw new IndexOutOfBoundsException("Command index out of range: " + commandIndex);
+    }
+
+    return commandEvents[commandIndex];
+  }
+
+  /**
+   * 指定したオフセット (ナノ秒) 以降で最初の小節の区切りを取得する。
+   * 小節は BPM が変わる度に、その時刻から数え直す。
+   */
+  long nextBarBoundary(long offset) {
+    final var segment = segmentAt(offset);
+
+    if (segment < 0) return offset;
+
+    final var start = segmentOffsets[segment];
+    final var bar = barLengths[segment];
+    final var boundary = start + Math.round(Math.ceil((offset - start) / bar) * bar);
+
+    // The segment may end before its next bar
+    return segment + 1 < segmentOffsets.length ? Math.min(boundary, segmentOffsets[segment + 1]) : boundary;
+  }
+
+  // Index of the segment containing the offset, or -1 if there are no segments
+  private int segmentAt(long offset) {
+    var low = 0;
+    var high = segmentOffsets.length;
+
+    while (low < high) {
+      final var mid = (low + high) >>> 1;
+
+      if (segmentOffsets[mid] <= offset) low = mid + 1;
+      else high = mid;
+    }
+
+    return low - 1;
+  }
+}
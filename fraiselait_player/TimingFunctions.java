@@ -1,18 +1,18 @@
 import java.util.Arrays;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.function.DoubleUnaryOperator;
 import java.util.stream.Collectors;
 
-public enum TimingFunctions implements Function<Double, Double> {
+public enum TimingFunctions implements DoubleUnaryOperator {
   LINEAR(t -> t, "linear"),
   EASE_IN(CubicBezier.EASE_IN, "ease-in"),
   EASE_OUT(CubicBezier.EASE_OUT, "ease-out"),
   EASE_IN_OUT(CubicBezier.EASE_IN_OUT, "ease-in-out");
 
-  private final Function<Double, Double> function;
+  private final DoubleUnaryOperator function;
   private final String name;
 
-  TimingFunctions(Function<Double, Double> function, String name) {
+  TimingFunctions(DoubleUnaryOperator function, String name) {
     this.function = function;
     this.name = name;
   }
@@ -34,24 +34,36 @@ public enum TimingFunctions implements Function<Double, Double> {
   }
 
   @Override
-  public Double apply(Double value) {
-    return function.apply(value);
+  public double applyAsDouble(double value) {
+    return function.applyAsDouble(value);
   }
 }
 
-class CubicBezier implements Function<Double, Double> {
+/**
+ * 3次ベジェ曲線によるタイミング関数。
+ * 作成時に曲線を細かく区切った表を作成し、呼び出し時は表の値を線形補間する。
+ */
+class CubicBezier implements DoubleUnaryOperator {
   public static final CubicBezier EASE_IN = new CubicBezier(0.42, 0.0, 1.0, 1.0);
   public static final CubicBezier EASE_OUT = new CubicBezier(0.0, 0.0, 0.58, 1.0);
   public static final CubicBezier EASE_IN_OUT = new CubicBezier(0.42, 0.0, 0.58, 1.0);
 
   private static final double EPSILON = 1e-6;
+  // Number of intervals of the table, fine enough that interpolation errors stay within the tolerance of the solver
+  private static final int TABLE_SIZE = 4096;
+
   private final double x1, y1, x2, y2;
+  private final double[] table = new double[TABLE_SIZE + 1];
 
   public CubicBezier(double x1, double y1, double x2, double y2) {
     this.x1 = x1;
     this.y1 = y1;
     this.x2 = x2;
     this.y2 = y2;
+
+    for (int i = 0; i <= TABLE_SIZE; i++) {
+      table[i] = bezierY(solveBezierX((double) i / TABLE_SIZE));
+    }
   }
 
   private double bezierX(double t) {
@@ -82,7 +94,14 @@ class CubicBezier implements Function<Double, Double> {
   }
 
   @Override
-  public Double apply(Double value) {
-    return bezierY(solveBezierX(value));
+  public double applyAsDouble(double value) {
+    if (!(value > 0)) return table[0];
+    if (value >= 1) return table[TABLE_SIZE];
+
+    final var position = value * TABLE_SIZE;
+    final var i = (int) position;
+    final var fraction = position - i;
+
+    return table[i] + (table[i + 1] - table[i]) * fraction;
   }
 }
@@ -0,0 +1,43 @@
+/**
+ * 再生中に、次のイベントの時刻まで待機する方法。
+ */
+public interface WaitStrategy {
+  /**
+   * 時刻まで CPU を使い続けて待機する。最も正確だが、待機中は常に CPU を1コア使う
+   */
+  WaitStrategy BUSY = (clock, deadline) -> {
+    while (clock.nanoTime() - deadline < 0) {
+      if (Thread.interrupted()) throw new InterruptedException();
+
+      Thread.onSpinWait();
+    }
+  };
+
+  /**
+   * 時刻まで他のスレッドに実行を譲りながら待機する
+   */
+  WaitStrategy YIELD = (clock, deadline) -> {
+    while (clock.nanoTime() - deadline < 0) {
+      if (Thread.interrupted()) throw new InterruptedException();
+
+      Thread.yield();
+    }
+  };
+
+  /**
+   * 起床の遅れを作成時と待機の度に測定し、遅れを見込んだ時刻までスレッドを停止させ、残りのみ CPU を使って待機する。
+   * 測定した遅れはインスタンスごとに保持するため、セッションごとに作成する。
+   */
+  static WaitStrategy park() {
+    return new ParkingWaitStrategy();
+  }
+
+  /**
+   * 指定した時刻まで待機する。
+   *
+   * @param clock    再生に使う時計
+   * @param deadline 待機を終える時刻 (時計のナノ秒)
+   * @throws InterruptedException 待機中に割り込まれた場合
+   */
+  void awaitUntil(PlaybackClock clock, long deadline) throws InterruptedException;
+}
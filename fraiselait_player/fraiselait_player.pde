@@ -165,6 +165,8 @@ AnimationManager anim = new AnimationManager(frame);
 PlayerSession session;
 
 Path scoreFile;
+ScoreFile scoreFileData;
+ScoreFileWatcher scoreFileWatcher;
 Score[] scores = new Score[1];
 
 Metronome metronome = new Metronome();
@@ -256,11 +258,11 @@ void drawMetronomeBeatProgress() {
   final var barProgress = metronome.getBarProgress();
   final var beatPos = metronome.getBeat();
 
-  final var barColorAlphaProgress = TimingFunctions.EASE_IN_OUT.apply(1 - barProgress);
+  final var barColorAlphaProgress = TimingFunctions.EASE_IN_OUT.applyAsDouble(1 - barProgress);
   final var barColorAlpha = (int) Math.floor(barColorAlphaProgress * 255);
   final var barColor = (ColorScheme.Blue & 0xffffff) | (barColorAlpha << 24);
 
-  final var beatColorAlphaProgress = TimingFunctions.EASE_OUT.apply(1 - beatProgress);
+  final var beatColorAlphaProgress = TimingFunctions.EASE_OUT.applyAsDouble(1 - beatProgress);
   final var beatColorAlpha = (int) Math.floor(beatColorAlphaProgress * 255);
   final var beatColor = (ColorScheme.Blue & 0xffffff) | (beatColorAlpha << 24);
 
@@ -677,6 +679,70 @@ void setup() {
   orchestrator.start();
 }
 
+PlayerSession loadSession(ScoreFile file, PlayerSession previous) {
+  // Every part is lexed, parsed and compiled in parallel
+  final var loaded = PlayerSession.load(file, scores.length, previous);
+
+  // Replace the array instead of updating it, since the previous session still refers to it
+  scores = loaded.getScores().toArray(new Score[0]);
+
+  scoreFileData = file;
+
+  return loaded;
+}
+
+void reportChanges() {
+  for (int i = 0; i < scores.length; i++) {
+    final var diff = scoreFileData.getDiff(ScoreFile.sectionNameOf(i, scores.length));
+
+    if (diff == null) {
+      println("sound " + i + ": loaded");
+    } else if (diff.isEmpty()) {
+      println("sound " + i + ": unchanged");
+    } else {
+      println("sound " + i + ": commands " + diff.getStart() + "-" + diff.getEnd() + " changed (" + diff.getRemovedCount() + " removed, " + diff.getInsertedCount() + " inserted)");
+    }
+  }
+}
+
+void watchScoreFile() {
+  try {
+    if (scoreFileWatcher != null)
+      scoreFileWatcher.close();
+
+    final var file = scoreFile;
+
+    scoreFileWatcher = new ScoreFileWatcher(
+      file,
+      () -> hotReloadScoreFile(file),
+      e -> println("Warning: Failed to reload the score file: " + e.getMessage())
+    );
+  } catch (IOException e) {
+    println("Warning: Failed to watch the score file: " + e.getMessage());
+  }
+}
+
+// Called on the watcher thread; the new parts are compiled here and swapped in without stopping playback
+synchronized void hotReloadScoreFile(Path file) {
+  // Another file may have been opened while the change was settling
+  if (!file.equals(scoreFile)) return;
+  if (scoreFileData == null || session == null) return;
+
+  try {
+    final var reloaded = scoreFileData.reload();
+    final var loaded = reloaded.loadAll(scores.length);
+
+    session.replaceScores(loaded).thenRun(() -> println("Score file was reloaded"));
+
+    scores = loaded.toArray(new Score[0]);
+    scoreFileData = reloaded;
+
+    reportChanges();
+  } catch (Exception err) {
+    err.printStackTrace();
+  }
+}
+
 void loadScoreFile(JLayeredPane pane) {
   final var chooser = new JFileChooser();
 
@@ -685,60 +751,52 @@ void loadScoreFile(JLayeredPane pane) {
   final var ret = chooser.showOpenDialog(pane);
 
   if (ret == JFileChooser.APPROVE_OPTION) {
-    scoreFile = chooser.getSelectedFile().toPath();
+    // The dialog is shown without the lock, so that a hot reload is not kept waiting on it
+    openScoreFile(chooser.getSelectedFile().toPath());
+  } else if (ret == JFileChooser.ERROR_OPTION) {
+    println("Warning: JFileChooser was reported an error");
+  }
+}
 
-    try {
-      for (int i = 0; i < scores.length; i++)
-        scores[i] = null; // clear
-
-      if (scores.length > 1) {
-        for (int i = 0; i < scores.length; i++) {
-          try {
-            scores[i] = Score.loadFromPath(scoreFile, "sound" + i);
-          } catch (Exception e) {
-            throw new RuntimeException("Error at sound " + i, e);
-          }
-        }
-      } else scores[0] = Score.loadFromPath(scoreFile);
+synchronized void openScoreFile(Path file) {
+  scoreFile = file;
 
-      if (session != null)
-        session.close();
+  try {
+    final var loaded = loadSession(ScoreFile.read(scoreFile), null);
 
-      if (player != null)
-        player.close();
+    watchScoreFile();
 
-      session = new PlayerSession(Arrays.asList(scores));
+    if (session != null)
+      session.close();
 
-      player = new MultiTrackPlayer(session);
+    if (player != null)
+      player.close();
 
-      autoplayWindowToggleButton.setText("開く");
-      autoplayWindowToggleButton.setForeground(pColorToAWT(ColorScheme.Text));
-      autoplayWindowToggleButton.setBackground(pColorToAWT(ColorScheme.Surface0));
-    } catch (Exception err) {
-      err.printStackTrace();
-    }
-  } else if (ret == JFileChooser.ERROR_OPTION) {
-    println("Warning: JFileChooser was reported an error");
+    session = loaded;
+
+    player = new MultiTrackPlayer(session);
+
+    autoplayWindowToggleButton.setText("開く");
+    autoplayWindowToggleButton.setForeground(pColorToAWT(ColorScheme.Text));
+    autoplayWindowToggleButton.setBackground(pColorToAWT(ColorScheme.Surface0));
+  } catch (Exception err) {
+    err.printStackTrace();
   }
 }
 
-void refreshScoreFile() {
+synchronized void refreshScoreFile() {
   if (scoreFile == null) return;
   if (session != null && session.isPlaying()) return;
 
   try {
-    for (int i = 0; i < scores.length; i++)
-      scores[i] = null; // clear
-
-    if (scores.length > 1) {
-      for (int i = 0; i < scores.length; i++) {
-        try {
-          scores[i] = Score.loadFromPath(scoreFile, "sound" + i);
-        } catch (Exception e) {
-          throw new RuntimeException("Error at sound " + i, e);
-        }
-      }
-    } else scores[0] = Score.loadFromPath(scoreFile);
+    // Sections and commands unchanged since the last load are reused
+    final var file = scoreFileData != null && scoreFileData.getPath().equals(scoreFile)
+        ? scoreFileData.reload()
+        : ScoreFile.read(scoreFile);
+
+    final var loaded = loadSession(file, session);
+
+    reportChanges();
 
     if (session != null)
       session.close();
@@ -746,7 +804,7 @@ void refreshScoreFile() {
     if (player != null)
       player.close();
 
-    session = new PlayerSession(Arrays.asList(scores));
+    session = loaded;
 
     player = new MultiTrackPlayer(session);
 
@@ -1058,6 +1116,14 @@ void draw() {
 }
 
 void dispose() {
+  if (scoreFileWatcher != null) {
+    try {
+      scoreFileWatcher.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
   if (session != null) {
     try {
       session.close();